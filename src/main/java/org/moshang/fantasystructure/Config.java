@@ -6,6 +6,13 @@ import net.minecraftforge.fml.common.Mod;
 @Mod.EventBusSubscriber(modid = FantasyStructure.MODID, bus = Mod.EventBusSubscriber.Bus.MOD)
 public class Config {
     public static ForgeConfigSpec.IntValue MAX_PROCESSOR;
+    public static ForgeConfigSpec.IntValue PATTERN_CACHE_BUDGET;
+    public static ForgeConfigSpec.IntValue FULL_RESCAN_INTERVAL;
+    public static ForgeConfigSpec.IntValue VALIDATION_BUDGET;
+    public static ForgeConfigSpec.IntValue ASYNC_VALIDATION_THRESHOLD;
+    public static ForgeConfigSpec.IntValue BUILD_TARGET_MSPT;
+    public static ForgeConfigSpec.IntValue BUILD_BLOCKS_MIN;
+    public static ForgeConfigSpec.IntValue BUILD_BLOCKS_MAX;
 
     static final ForgeConfigSpec SPEC;
 
@@ -22,6 +29,29 @@ public class Config {
         builder.comment("and 6 threads in loading task");
         MAX_PROCESSOR = builder.defineInRange("maxProcessor", 2, 1, 64);
 
+        builder.comment("Memory budget in MiB for decoded blueprint patterns");
+        builder.comment("Least recently used patterns beyond this budget are dropped and decoded again when needed");
+        PATTERN_CACHE_BUDGET = builder.defineInRange("patternCacheBudget", 256, 1, 65536);
+
+        builder.comment("Controllers re-check only the blocks that changed inside their structure");
+        builder.comment("This defines every how many ticks a full re-check still runs as a safety net, 0 disables it");
+        FULL_RESCAN_INTERVAL = builder.defineInRange("fullRescanInterval", 1200, 0, 72000);
+
+        builder.comment("Time in microseconds all controllers together may spend on structure checks per server tick");
+        builder.comment("Checks that don't fit are carried over, at least one check runs every tick");
+        VALIDATION_BUDGET = builder.defineInRange("validationBudgetMicros", 2000, 50, 50000);
+
+        builder.comment("Full checks of structures with at least this many blocks run on worker threads");
+        builder.comment("against a snapshot of the chunk sections, the result is applied one tick later, 0 disables it");
+        ASYNC_VALIDATION_THRESHOLD = builder.defineInRange("asyncValidationThreshold", 16384, 0, Integer.MAX_VALUE);
+
+        builder.comment("Structure builders place as many blocks per tick as keep the server tick under this many milliseconds");
+        BUILD_TARGET_MSPT = builder.defineInRange("buildTargetMspt", 40, 1, 1000);
+
+        builder.comment("Lower and upper limit of blocks placed per tick by all structure builders together");
+        BUILD_BLOCKS_MIN = builder.defineInRange("buildBlocksPerTickMin", 8, 1, 65536);
+        BUILD_BLOCKS_MAX = builder.defineInRange("buildBlocksPerTickMax", 2048, 1, 65536);
+
         SPEC = builder.build();
     }
 
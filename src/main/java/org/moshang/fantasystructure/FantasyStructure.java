@@ -18,6 +18,7 @@ import org.moshang.fantasystructure.developed.Command;
 import org.moshang.fantasystructure.helper.blueprint.BlueprintEditor;
 import org.moshang.fantasystructure.helper.blueprint.BlueprintManager;
 import org.moshang.fantasystructure.helper.builder.StructureBuilderManager;
+import org.moshang.fantasystructure.helper.validation.ValidationScheduler;
 import org.slf4j.Logger;
 
 // The value here should match an entry in the META-INF/mods.toml file
@@ -35,6 +36,7 @@ public class FantasyStructure {
         FSRegistry.ITEMS.register(modEventBus);
         MinecraftForge.EVENT_BUS.register(this);
         MinecraftForge.EVENT_BUS.register(StructureBuilderManager.class);
+        MinecraftForge.EVENT_BUS.register(ValidationScheduler.class);
         MinecraftForge.EVENT_BUS.addListener(this::commandRegister);
         ModLoadingContext.get().registerConfig(ModConfig.Type.COMMON, Config.SPEC);
     }
@@ -43,6 +45,7 @@ public class FantasyStructure {
         event.enqueueWork(() -> {
             BlueprintManager.init(FMLPaths.CONFIGDIR.get());
             BlueprintEditor.init();
+            ValidationScheduler.init();
         });
     }
 
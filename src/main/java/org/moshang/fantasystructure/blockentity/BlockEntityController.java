@@ -6,16 +6,28 @@ import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.Config;
+import org.moshang.fantasystructure.helper.MismatchBuffer;
+import org.moshang.fantasystructure.helper.PatternOrientation;
 import org.moshang.fantasystructure.helper.StructurePattern;
 import org.moshang.fantasystructure.helper.blueprint.BlueprintManager;
 import org.moshang.fantasystructure.helper.builder.StructureBuilderManager;
+import org.moshang.fantasystructure.helper.validation.ControllerIndex;
+import org.moshang.fantasystructure.helper.validation.ValidationScheduler;
+import org.moshang.fantasystructure.helper.validation.ValidationState;
 import org.slf4j.Logger;
 
 public abstract class BlockEntityController extends BlockEntity {
     protected boolean formed = false;
     private StructurePattern pattern;
     private final ResourceLocation id;
+    private final ValidationState validation = new ValidationState();
+    private BoundingBox bounds;
     private int ticks = 0;
+    private int rescanPhase = 0;
+    private boolean rescanDue = false;
 
     private static final Logger LOGGER = LogUtils.getLogger();
 
@@ -31,19 +43,77 @@ public abstract class BlockEntityController extends BlockEntity {
         super.onLoad();
         if(!level.isClientSide) {
             initPattern();
-            checkStructure();
+            rescanPhase = level.getRandom().nextInt(Math.max(1, Config.FULL_RESCAN_INTERVAL.get()));
+            ValidationScheduler.requestChanged(this);
         }
     }
 
+    @Override
+    public void setRemoved() {
+        super.setRemoved();
+        ValidationScheduler.cancel(this);
+        ControllerIndex.unregister(this);
+        bounds = null;
+        validation.invalidate();
+    }
+
     public void tick() {
         if(level == null || level.isClientSide) return;
 
         ticks++;
-        if(ticks % 40 == 0) {
-            checkStructure();
-            if(formed) {
-                System.out.println("结构完整");
+        int rescanInterval = Config.FULL_RESCAN_INTERVAL.get();
+        if(rescanInterval > 0 && (ticks + rescanPhase) % rescanInterval == 0) {
+            rescanDue = true;
+            ValidationScheduler.requestRescan(this);
+        }
+    }
+
+    /**
+     * Called for block changes in chunk sections overlapping this structure.
+     */
+    public void onBlockChanged(BlockPos pos) {
+        if(bounds != null && bounds.isInside(pos)) {
+            validation.markDirty(pos);
+            if(validation.hasDirty()) {
+                ValidationScheduler.requestChanged(this);
+            }
+        }
+    }
+
+    /**
+     * Called when a block entity in an overlapping section was marked changed. Only
+     * cells that require block entity data care, machines elsewhere in the
+     * structure call this almost every tick.
+     */
+    public void onBlockEntityChanged(BlockPos pos) {
+        if(pattern != null && bounds != null && bounds.isInside(pos)
+                && pattern.needsBlockEntityAt(worldPosition, validation.getOrientation(), pos)) {
+            onBlockChanged(pos);
+        }
+    }
+
+    /**
+     * Run by {@link ValidationScheduler}: a full check when the state is unknown,
+     * was only rejected by palettes or a rescan is due, otherwise only the changed positions.
+     */
+    public void validate() {
+        if(level == null || level.isClientSide) return;
+
+        if(validation.isChecking()) {
+            if(!validation.isCheckDone()) return;
+            formed = validation.finishAsyncCheck(level, worldPosition, pattern);
+            if(validation.hasDirty()) {
+                ValidationScheduler.requestChanged(this);
             }
+            return;
+        }
+
+        if(!validation.isKnown() || validation.isRejected() || rescanDue) {
+            rescanDue = false;
+            checkStructure();
+        } else if(validation.hasDirty()) {
+            pattern.recordUse();
+            formed = validation.applyDirty(level, worldPosition, pattern);
         }
     }
 
@@ -56,13 +126,37 @@ public abstract class BlockEntityController extends BlockEntity {
     protected boolean checkStructure() {
         if (pattern == null) initPattern();
         if (pattern == null) return false;
-        formed = pattern.matches(level, worldPosition);
+        pattern.recordUse();
+        if (bounds == null) {
+            bounds = pattern.getEnclosingBounds(worldPosition);
+            ControllerIndex.register(this, level, bounds);
+        }
+        if(validation.rejectByPalette(level, worldPosition, pattern)) {
+            formed = validation.isFormed();
+            return formed;
+        }
+        if(ValidationScheduler.shouldCheckAsync(pattern)) {
+            validation.startAsyncCheck(level, worldPosition, pattern, ValidationScheduler.executor())
+                    .whenComplete((result, e) -> ValidationScheduler.postCompleted(this));
+            return formed;
+        }
+        formed = validation.fullCheck(level, worldPosition, pattern);
         return formed;
     }
 
+    /**
+     * Collects what is missing or wrong in the structure in its current orientation.
+     * @return {@code out}, or {@code null} if the pattern is not available
+     */
+    @Nullable
+    public MismatchBuffer diff(MismatchBuffer out) {
+        if(pattern == null || level == null) return null;
+        return pattern.diff(level, worldPosition, validation.getOrientation(), out);
+    }
+
     public void autoBuild() {
         LOGGER.info("autoBuild");
-        StructureBuilderManager.startBuild(level, worldPosition, pattern);
+        StructureBuilderManager.startBuild(level, worldPosition, pattern, validation.getOrientation());
     }
 
     public boolean getFormed() {
@@ -71,4 +165,7 @@ public abstract class BlockEntityController extends BlockEntity {
     public StructurePattern getPattern() {
         return pattern;
     }
+    public PatternOrientation getOrientation() {
+        return validation.getOrientation();
+    }
 }
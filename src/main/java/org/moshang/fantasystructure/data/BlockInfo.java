@@ -9,8 +9,10 @@ import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.helper.PatternOrientation;
 
 import java.util.Collections;
+import java.util.Objects;
 import java.util.Set;
 
 public class BlockInfo {
@@ -18,51 +20,75 @@ public class BlockInfo {
     private final BlockState expectedState;
     private final Set<TagKey<Block>> allowedTags;
     @Nullable
+    private final TagStateSet allowedStates;
+    @Nullable
     private final CompoundTag tag;
+    @Nullable
+    private final NbtPredicate nbtPredicate;
 
     public BlockInfo(@NotNull BlockState state) {
         this.expectedState = state;
         this.allowedTags = Collections.emptySet();
+        this.allowedStates = null;
         this.tag = null;
+        this.nbtPredicate = null;
     }
 
     public BlockInfo(@NotNull Set<TagKey<Block>> allowedTags) {
         this.expectedState = null;
         this.allowedTags = allowedTags;
+        this.allowedStates = allowedTags.isEmpty() ? null : TagStateSet.of(allowedTags);
         this.tag = null;
+        this.nbtPredicate = null;
     }
 
     public BlockInfo(BlockState state, CompoundTag tag) {
         this.expectedState = state;
         this.allowedTags = Collections.emptySet();
+        this.allowedStates = null;
+        this.tag = tag;
+        this.nbtPredicate = tag == null ? null : NbtPredicate.compile(tag);
+    }
+
+    private BlockInfo(BlockState state, @Nullable CompoundTag tag, @Nullable NbtPredicate nbtPredicate) {
+        this.expectedState = state;
+        this.allowedTags = Collections.emptySet();
+        this.allowedStates = null;
         this.tag = tag;
+        this.nbtPredicate = nbtPredicate;
     }
 
     public boolean matches(Level level, BlockPos pos) {
-        BlockState state = level.getBlockState(pos);
-
-        if(!allowedTags.isEmpty()) {
-            for(TagKey<Block> tag : allowedTags) {
-                if(state.is(tag)) {
-                    return checkIfNeed(level, pos);
-                }
-            }
-            return false;
-        }
+        return matches(level.getBlockState(pos), level, pos);
+    }
 
-        if(expectedState != null) {
-            if(!state.equals(expectedState)) {
+    /**
+     * Same as {@link #matches(Level, BlockPos)} for a state the caller already read,
+     * the level is only consulted for block entity data.
+     */
+    public boolean matches(BlockState state, Level level, BlockPos pos) {
+        return matchesState(state) && checkIfNeed(level, pos);
+    }
 
-                return false;
-            }
-            return checkIfNeed(level, pos);
+    /**
+     * Checks the block state only, safe to call off the server thread.
+     */
+    public boolean matchesState(BlockState state) {
+        if(allowedStates != null) {
+            return allowedStates.contains(state);
         }
+        return expectedState != null && state.equals(expectedState);
+    }
 
-        return false;
+    /**
+     * @return {@code true} if matching also requires block entity data
+     */
+    public boolean needsBlockEntity() {
+        return nbtPredicate != null;
     }
 
     private boolean checkIfNeed(Level level, BlockPos pos) {
-        if(tag == null) {
+        if(nbtPredicate == null) {
             return true;
         }
 
@@ -71,24 +97,45 @@ public class BlockInfo {
             return false;
         }
 
-        CompoundTag nbt = be.serializeNBT();
-        return containsAll(nbt, tag);
+        return nbtPredicate.test(be);
     }
 
-    private boolean containsAll(CompoundTag actualNBT, CompoundTag requiredNBT) {
-        for(String key : requiredNBT.getAllKeys()) {
-            if(!actualNBT.contains(key)) {
-                return false;
-            }
-        }
-        return true;
+    /**
+     * @return this info with its expected state mirrored and rotated, tags and NBT are kept
+     */
+    public BlockInfo transform(PatternOrientation orientation) {
+        if(expectedState == null || orientation == PatternOrientation.NONE) return this;
+
+        BlockState state = orientation.apply(expectedState);
+        return state == expectedState ? this : new BlockInfo(state, tag, nbtPredicate);
     }
 
     public BlockState getExpectedState() {
         return expectedState;
     }
 
+    /**
+     * @return {@code true} if only {@link #getExpectedState()} is required, without tags or NBT
+     */
+    public boolean isExactState() {
+        return expectedState != null && allowedTags.isEmpty() && tag == null;
+    }
+
     public boolean isAir() {
         return expectedState == null || expectedState.isAir();
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof BlockInfo other)) return false;
+        return expectedState == other.expectedState
+                && allowedTags.equals(other.allowedTags)
+                && Objects.equals(tag, other.tag);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(expectedState, allowedTags, tag);
+    }
 }
@@ -0,0 +1,156 @@
+package org.moshang.fantasystructure.data;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NumericTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.entity.BlockEntityType;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Required block entity data compiled into a flat list of checks on tag paths.
+ * Nested compounds in the required tag are paths, every other value must be equal
+ * (numbers compare by value regardless of their tag type). A compound holding only
+ * {@code $min}/{@code $max} is a numeric range, and an empty compound or one with
+ * {@code $exists} only requires the key to be present.
+ * <p>
+ * Paths are resolved against the same tag as {@code serializeNBT}, so {@code id},
+ * {@code x}, {@code y} and {@code z} can be required as well. Those are read from
+ * the block entity directly, it is only serialized if other keys are required.
+ * The result is cached on the block entity and reused until it is marked changed.
+ */
+public class NbtPredicate {
+    private static final byte EXISTS = 0;
+    private static final byte EQUALS = 1;
+    private static final byte RANGE = 2;
+    private static final Set<String> METADATA_KEYS = Set.of("id", "x", "y", "z");
+
+    private final String[][] paths;
+    private final byte[] kinds;
+    private final Tag[] values;
+    private final double[] min, max;
+    /** Whether any path starts outside the metadata keys, which requires serializing. */
+    private final boolean needsData;
+
+    private NbtPredicate(List<Check> checks) {
+        int size = checks.size();
+        this.paths = new String[size][];
+        this.kinds = new byte[size];
+        this.values = new Tag[size];
+        this.min = new double[size];
+        this.max = new double[size];
+        boolean needsData = false;
+        for(int i = 0; i < size; i++) {
+            Check check = checks.get(i);
+            paths[i] = check.path();
+            kinds[i] = check.kind();
+            values[i] = check.value();
+            min[i] = check.min();
+            max[i] = check.max();
+            needsData |= !METADATA_KEYS.contains(paths[i][0]);
+        }
+        this.needsData = needsData;
+    }
+
+    public static NbtPredicate compile(CompoundTag required) {
+        List<Check> checks = new ArrayList<>();
+        compile(required, new String[0], checks);
+        return new NbtPredicate(checks);
+    }
+
+    private static void compile(CompoundTag tag, String[] prefix, List<Check> checks) {
+        for(String key : tag.getAllKeys()) {
+            String[] path = new String[prefix.length + 1];
+            System.arraycopy(prefix, 0, path, 0, prefix.length);
+            path[prefix.length] = key;
+
+            Tag value = tag.get(key);
+            if(!(value instanceof CompoundTag compound)) {
+                checks.add(new Check(path, EQUALS, value, 0, 0));
+            } else if(compound.isEmpty() || compound.contains("$exists")) {
+                checks.add(new Check(path, EXISTS, null, 0, 0));
+            } else if(compound.contains("$min") || compound.contains("$max")) {
+                double lower = compound.contains("$min") ? compound.getDouble("$min") : Double.NEGATIVE_INFINITY;
+                double upper = compound.contains("$max") ? compound.getDouble("$max") : Double.POSITIVE_INFINITY;
+                checks.add(new Check(path, RANGE, null, lower, upper));
+            } else {
+                compile(compound, path, checks);
+            }
+        }
+    }
+
+    /**
+     * Serializes the block entity only if it changed since the last test with this predicate.
+     */
+    public boolean test(BlockEntity be) {
+        if(paths.length == 0) return true;
+
+        NbtRevision revision = (NbtRevision) be;
+        int current = revision.fantasystructure$getRevision();
+        if(revision.fantasystructure$getCachedPredicate() == this
+                && revision.fantasystructure$getCachedRevision() == current) {
+            return revision.fantasystructure$getCachedResult();
+        }
+
+        boolean result = test(needsData ? be.saveWithFullMetadata() : metadata(be));
+        revision.fantasystructure$setCached(this, current, result);
+        return result;
+    }
+
+    private static CompoundTag metadata(BlockEntity be) {
+        CompoundTag tag = new CompoundTag();
+        ResourceLocation id = BlockEntityType.getKey(be.getType());
+        if(id != null) {
+            tag.putString("id", id.toString());
+        }
+        tag.putInt("x", be.getBlockPos().getX());
+        tag.putInt("y", be.getBlockPos().getY());
+        tag.putInt("z", be.getBlockPos().getZ());
+        return tag;
+    }
+
+    public boolean test(CompoundTag nbt) {
+        for(int i = 0; i < paths.length; i++) {
+            Tag actual = find(nbt, paths[i]);
+            if(actual == null) return false;
+
+            switch(kinds[i]) {
+                case EQUALS -> {
+                    if(!valueEquals(values[i], actual)) return false;
+                }
+                case RANGE -> {
+                    if(!(actual instanceof NumericTag number)) return false;
+                    double value = number.getAsDouble();
+                    if(value < min[i] || value > max[i]) return false;
+                }
+                default -> {}
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private static Tag find(CompoundTag nbt, String[] path) {
+        CompoundTag current = nbt;
+        for(int i = 0; i < path.length - 1; i++) {
+            if(!(current.get(path[i]) instanceof CompoundTag next)) return null;
+            current = next;
+        }
+        return current.get(path[path.length - 1]);
+    }
+
+    private static boolean valueEquals(Tag expected, Tag actual) {
+        if(expected instanceof NumericTag a && actual instanceof NumericTag b) {
+            return a.getAsDouble() == b.getAsDouble();
+        }
+        return expected.equals(actual);
+    }
+
+    private record Check(String[] path, byte kind, @Nullable Tag value, double min, double max) {
+    }
+}
@@ -0,0 +1,21 @@
+package org.moshang.fantasystructure.data;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Implemented on every block entity by mixin. The revision changes whenever the
+ * block entity is marked changed or loads new data, and the last NBT predicate
+ * result is kept together with the revision it was computed for.
+ */
+public interface NbtRevision {
+    int fantasystructure$getRevision();
+
+    @Nullable
+    NbtPredicate fantasystructure$getCachedPredicate();
+
+    int fantasystructure$getCachedRevision();
+
+    boolean fantasystructure$getCachedResult();
+
+    void fantasystructure$setCached(NbtPredicate predicate, int revision, boolean result);
+}
@@ -0,0 +1,80 @@
+package org.moshang.fantasystructure.data;
+
+import net.minecraft.core.Holder;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.tags.TagKey;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraftforge.event.TagsUpdatedEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.registries.IdMappingEvent;
+import org.moshang.fantasystructure.FantasyStructure;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The block states of any of a set of block tags, as a bit set over block state ids.
+ * Instances are interned per tag set so equal sets from all blueprints share one
+ * bit set, which is rebuilt lazily after tags reload or ids are remapped.
+ */
+@Mod.EventBusSubscriber(modid = FantasyStructure.MODID)
+public class TagStateSet {
+    private static final Map<Set<TagKey<Block>>, TagStateSet> INTERNED = new ConcurrentHashMap<>();
+
+    private final Set<TagKey<Block>> tags;
+    private volatile BitSet states;
+
+    private TagStateSet(Set<TagKey<Block>> tags) {
+        this.tags = tags;
+    }
+
+    public static TagStateSet of(Set<TagKey<Block>> tags) {
+        return INTERNED.computeIfAbsent(Set.copyOf(tags), TagStateSet::new);
+    }
+
+    @SubscribeEvent
+    public static void onTagsUpdated(TagsUpdatedEvent event) {
+        INTERNED.values().forEach(TagStateSet::reset);
+    }
+
+    @SubscribeEvent
+    public static void onIdMapping(IdMappingEvent event) {
+        INTERNED.values().forEach(TagStateSet::reset);
+    }
+
+    public boolean contains(BlockState state) {
+        BitSet bits = states;
+        if(bits == null) {
+            bits = build();
+        }
+        return bits.get(Block.getId(state));
+    }
+
+    private synchronized BitSet build() {
+        BitSet bits = states;
+        if(bits != null) return bits;
+
+        bits = new BitSet(Block.BLOCK_STATE_REGISTRY.size());
+        for(TagKey<Block> tag : tags) {
+            for(Holder<Block> holder : BuiltInRegistries.BLOCK.getTagOrEmpty(tag)) {
+                for(BlockState state : holder.value().getStateDefinition().getPossibleStates()) {
+                    bits.set(Block.getId(state));
+                }
+            }
+        }
+        states = bits;
+        return bits;
+    }
+
+    private synchronized void reset() {
+        states = null;
+    }
+
+    public Set<TagKey<Block>> getTags() {
+        return tags;
+    }
+}
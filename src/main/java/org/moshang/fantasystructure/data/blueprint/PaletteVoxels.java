@@ -0,0 +1,259 @@
+package org.moshang.fantasystructure.data.blueprint;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.util.Mth;
+import net.minecraft.util.SimpleBitStorage;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.data.BlockInfo;
+
+import java.util.*;
+
+/**
+ * Dense voxel storage of a blueprint. Every cell holds an index into a shared
+ * {@link BlockInfo} palette, index 0 meaning "no block required here".
+ * Like vanilla's paletted containers, indices are bit-packed with as many bits
+ * per entry as the palette needs, in one storage per 16x16x16 section so that
+ * sections can be filled from different threads. Sections without any
+ * non-empty cell are never allocated.
+ */
+public class PaletteVoxels {
+    private final int sizeX, sizeY, sizeZ;
+    private final BlockPos controllerOffset;
+    private final BlockInfo[] palette;
+    private final int bits;
+    private final int sectionsX, sectionsY, sectionsZ;
+    private final SimpleBitStorage[] sections;
+    private volatile int nonEmptyCount = -1;
+
+    public PaletteVoxels(int sizeX, int sizeY, int sizeZ, BlockPos controllerOffset, BlockInfo[] palette) {
+        if(palette.length > 0xFFFF)
+            throw new IllegalArgumentException("Palette too large: " + palette.length);
+
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.controllerOffset = controllerOffset;
+        this.palette = palette;
+        this.bits = Math.max(1, Mth.ceillog2(palette.length));
+        this.sectionsX = sectionCount(sizeX);
+        this.sectionsY = sectionCount(sizeY);
+        this.sectionsZ = sectionCount(sizeZ);
+        this.sections = new SimpleBitStorage[sectionsX * sectionsY * sectionsZ];
+    }
+
+    public static PaletteVoxels fromMap(Map<BlockPos, BlockInfo> pattern) {
+        if(pattern.isEmpty()) {
+            return new PaletteVoxels(0, 0, 0, BlockPos.ZERO, new BlockInfo[] { null });
+        }
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        Map<BlockInfo, Integer> paletteIndex = new LinkedHashMap<>();
+        for(Map.Entry<BlockPos, BlockInfo> entry : pattern.entrySet()) {
+            BlockPos pos = entry.getKey();
+            minX = Math.min(minX, pos.getX());
+            minY = Math.min(minY, pos.getY());
+            minZ = Math.min(minZ, pos.getZ());
+            maxX = Math.max(maxX, pos.getX());
+            maxY = Math.max(maxY, pos.getY());
+            maxZ = Math.max(maxZ, pos.getZ());
+            paletteIndex.putIfAbsent(entry.getValue(), paletteIndex.size() + 1);
+        }
+
+        BlockInfo[] palette = new BlockInfo[paletteIndex.size() + 1];
+        paletteIndex.forEach((info, index) -> palette[index] = info);
+
+        BlockPos controllerOffset = new BlockPos(-minX, -minY, -minZ);
+        PaletteVoxels voxels = new PaletteVoxels(
+                maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1, controllerOffset, palette
+        );
+        for(Map.Entry<BlockPos, BlockInfo> entry : pattern.entrySet()) {
+            BlockPos pos = entry.getKey();
+            voxels.set(pos.getX() - minX, pos.getY() - minY, pos.getZ() - minZ,
+                    paletteIndex.get(entry.getValue()));
+        }
+        voxels.markChanged();
+        return voxels;
+    }
+
+    public int get(int x, int y, int z) {
+        SimpleBitStorage storage = sections[sectionIndex(x, y, z)];
+        return storage == null ? 0 : storage.get(localIndex(x, y, z));
+    }
+
+    /**
+     * Cells of different 16x16x16 sections may be set from different threads.
+     * Call {@link #markChanged()} once the cells are filled.
+     */
+    public void set(int x, int y, int z, int paletteIndex) {
+        int section = sectionIndex(x, y, z);
+        SimpleBitStorage storage = sections[section];
+        if(storage == null) {
+            if(paletteIndex == 0) return;
+            storage = new SimpleBitStorage(bits, sectionLength(x, sizeX) * sectionLength(y, sizeY) * sectionLength(z, sizeZ));
+            sections[section] = storage;
+        }
+        storage.set(localIndex(x, y, z), paletteIndex);
+    }
+
+    /**
+     * Drops the cached cell count after a batch of {@link #set} calls.
+     */
+    public void markChanged() {
+        nonEmptyCount = -1;
+    }
+
+    @Nullable
+    public BlockInfo getInfo(int x, int y, int z) {
+        return palette[get(x, y, z)];
+    }
+
+    /**
+     * @return the info at controller-relative coordinates, {@code null} outside the
+     *         blueprint or for empty cells
+     */
+    @Nullable
+    public BlockInfo getRelative(int x, int y, int z) {
+        x += controllerOffset.getX();
+        y += controllerOffset.getY();
+        z += controllerOffset.getZ();
+        if(x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ) return null;
+        return palette[get(x, y, z)];
+    }
+
+    /**
+     * @return a stable index of the cell at controller-relative coordinates,
+     *         or -1 outside the blueprint
+     */
+    public int cellIndex(int x, int y, int z) {
+        x += controllerOffset.getX();
+        y += controllerOffset.getY();
+        z += controllerOffset.getZ();
+        if(x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ) return -1;
+        return (y * sizeZ + z) * sizeX + x;
+    }
+
+    /**
+     * Visits every non-empty cell section by section with coordinates relative
+     * to the controller. Nothing is allocated per cell.
+     * @return {@code false} if the visitor stopped the iteration early
+     */
+    public boolean forEach(CellVisitor visitor) {
+        int offX = controllerOffset.getX();
+        int offY = controllerOffset.getY();
+        int offZ = controllerOffset.getZ();
+        int section = 0;
+        for(int sy = 0; sy < sectionsY; sy++) {
+            for(int sz = 0; sz < sectionsZ; sz++) {
+                for(int sx = 0; sx < sectionsX; sx++, section++) {
+                    SimpleBitStorage storage = sections[section];
+                    if(storage == null) continue;
+
+                    int originX = sx << 4, originY = sy << 4, originZ = sz << 4;
+                    int lenX = sectionLength(originX, sizeX);
+                    int lenY = sectionLength(originY, sizeY);
+                    int lenZ = sectionLength(originZ, sizeZ);
+                    int i = 0;
+                    for(int y = 0; y < lenY; y++) {
+                        for(int z = 0; z < lenZ; z++) {
+                            for(int x = 0; x < lenX; x++, i++) {
+                                int paletteIndex = storage.get(i);
+                                if(paletteIndex == 0) continue;
+                                if(!visitor.visit(originX + x - offX, originY + y - offY, originZ + z - offZ,
+                                        palette[paletteIndex])) {
+                                    return false;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    public Map<BlockPos, BlockInfo> toMap() {
+        Map<BlockPos, BlockInfo> map = new HashMap<>(Math.max(16, getNonEmptyCount() * 4 / 3 + 1));
+        forEach((x, y, z, info) -> {
+            map.put(new BlockPos(x, y, z), info);
+            return true;
+        });
+        return map;
+    }
+
+    private int sectionIndex(int x, int y, int z) {
+        return ((y >> 4) * sectionsZ + (z >> 4)) * sectionsX + (x >> 4);
+    }
+
+    private int localIndex(int x, int y, int z) {
+        int lenX = sectionLength(x, sizeX);
+        int lenZ = sectionLength(z, sizeZ);
+        return ((y & 15) * lenZ + (z & 15)) * lenX + (x & 15);
+    }
+
+    private static int sectionLength(int coord, int size) {
+        return Math.min(16, size - (coord & ~15));
+    }
+
+    private static int sectionCount(int size) {
+        return (size + 15) >> 4;
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+    public int getSizeY() {
+        return sizeY;
+    }
+    public int getSizeZ() {
+        return sizeZ;
+    }
+    public BlockPos getControllerOffset() {
+        return controllerOffset;
+    }
+    public int getCellCount() {
+        return sizeX * sizeY * sizeZ;
+    }
+    public int getBitsPerEntry() {
+        return bits;
+    }
+    /**
+     * Approximate heap footprint of the packed index storage in bytes.
+     */
+    public long getStorageBytes() {
+        long bytes = 16L + sections.length * 4L;
+        for(SimpleBitStorage storage : sections) {
+            if(storage != null) {
+                bytes += 32L + storage.getRaw().length * 8L;
+            }
+        }
+        return bytes;
+    }
+    public int getPaletteSize() {
+        return palette.length;
+    }
+    public BlockInfo getPaletteEntry(int paletteIndex) {
+        return palette[paletteIndex];
+    }
+    public int getNonEmptyCount() {
+        int count = nonEmptyCount;
+        if(count < 0) {
+            int[] counter = new int[1];
+            forEach((x, y, z, info) -> {
+                counter[0]++;
+                return true;
+            });
+            count = counter[0];
+            nonEmptyCount = count;
+        }
+        return count;
+    }
+
+    @FunctionalInterface
+    public interface CellVisitor {
+        /**
+         * @return {@code false} to stop the iteration
+         */
+        boolean visit(int x, int y, int z, BlockInfo info);
+    }
+}
@@ -1,21 +1,37 @@
 package org.moshang.fantasystructure.data.blueprint;
 
 import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.block.state.properties.Property;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.registries.ForgeRegistries;
+import net.minecraftforge.registries.IdMappingEvent;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.FantasyStructure;
 import org.slf4j.Logger;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Resolves blueprint palette entries to block states. Entries are either legacy
+ * {@link BlockState#toString()} strings or a registry name plus one value index per
+ * property, in the order of {@link BlockPropertyIndex}. Newer blueprints also store
+ * the property and value names, which are resolved by name through
+ * {@link BlockPropertyIndex#resolve(String[], String[][], int[])}.
+ */
 @SuppressWarnings("removal")
+@Mod.EventBusSubscriber(modid = FantasyStructure.MODID)
 public class StateCache {
     private static final Map<String, BlockState> GLOBAL_BLOCK_STATES = new ConcurrentHashMap<>(1024);
+    private static final Map<String, Optional<BlockPropertyIndex>> BLOCK_INDICES = new ConcurrentHashMap<>(256);
+    private static final Map<Block, BlockPropertyIndex> PROPERTY_INDICES = new ConcurrentHashMap<>(256);
 
     private static final Logger LOGGER = LogUtils.getLogger();
 
@@ -25,6 +41,32 @@ public class StateCache {
         return GLOBAL_BLOCK_STATES.computeIfAbsent(stateString, StateCache::parseUncached);
     }
 
+    /**
+     * The registry name to block table is built lazily and dropped
+     * whenever the registries are frozen or remapped.
+     */
+    @SubscribeEvent
+    public static void onIdMapping(IdMappingEvent event) {
+        BLOCK_INDICES.clear();
+        PROPERTY_INDICES.clear();
+        GLOBAL_BLOCK_STATES.clear();
+    }
+
+    @Nullable
+    public static BlockPropertyIndex forBlockId(String blockId) {
+        return BLOCK_INDICES.computeIfAbsent(blockId, id -> {
+            ResourceLocation location = ResourceLocation.tryParse(id);
+            if(location == null || !ForgeRegistries.BLOCKS.containsKey(location)) {
+                return Optional.empty();
+            }
+            return Optional.of(forBlock(ForgeRegistries.BLOCKS.getValue(location)));
+        }).orElse(null);
+    }
+
+    public static BlockPropertyIndex forBlock(Block block) {
+        return PROPERTY_INDICES.computeIfAbsent(block, BlockPropertyIndex::new);
+    }
+
     private static BlockState parseUncached(String stateString) {
         try {
             String blockId;
@@ -73,4 +115,139 @@ public class StateCache {
                 .map(value -> state.setValue(property, value))
                 .orElse(state);
     }
-}
\ No newline at end of file
+
+    public static final class BlockPropertyIndex {
+        private final Block block;
+        @Nullable
+        private final String blockId;
+        private final Property<?>[] properties;
+        private final List<Comparable<?>>[] values;
+        private final Object2IntMap<Comparable<?>>[] valueIndices;
+        private final int[] strides;
+        private final BlockState[] states;
+
+        @SuppressWarnings("unchecked")
+        private BlockPropertyIndex(Block block) {
+            this.block = block;
+            ResourceLocation key = ForgeRegistries.BLOCKS.getKey(block);
+            this.blockId = key == null ? null : key.toString();
+            this.properties = block.getStateDefinition().getProperties().toArray(Property[]::new);
+            this.values = new List[properties.length];
+            this.valueIndices = new Object2IntMap[properties.length];
+            this.strides = new int[properties.length];
+
+            int stateCount = 1;
+            for(int i = 0; i < properties.length; i++) {
+                values[i] = new ArrayList<>(properties[i].getPossibleValues());
+                valueIndices[i] = new Object2IntOpenHashMap<>(values[i].size());
+                valueIndices[i].defaultReturnValue(-1);
+                for(int v = 0; v < values[i].size(); v++) {
+                    valueIndices[i].put(values[i].get(v), v);
+                }
+                strides[i] = stateCount;
+                stateCount *= values[i].size();
+            }
+
+            this.states = new BlockState[stateCount];
+            for(int ordinal = 0; ordinal < stateCount; ordinal++) {
+                BlockState state = block.defaultBlockState();
+                for(int i = 0; i < properties.length; i++) {
+                    state = withValue(state, properties[i], values[i].get((ordinal / strides[i]) % values[i].size()));
+                }
+                states[ordinal] = state;
+            }
+        }
+
+        public int getPropertyCount() {
+            return properties.length;
+        }
+
+        /**
+         * @return the registry name, or {@code null} if the block is not registered
+         */
+        @Nullable
+        public String getBlockId() {
+            return blockId;
+        }
+
+        public String[] getPropertyNames() {
+            String[] names = new String[properties.length];
+            for(int i = 0; i < properties.length; i++) {
+                names[i] = properties[i].getName();
+            }
+            return names;
+        }
+
+        public String[][] getValueNames() {
+            String[][] names = new String[properties.length][];
+            for(int i = 0; i < properties.length; i++) {
+                names[i] = new String[values[i].size()];
+                for(int v = 0; v < values[i].size(); v++) {
+                    names[i][v] = valueName(properties[i], values[i].get(v));
+                }
+            }
+            return names;
+        }
+
+        /**
+         * Resolves value indices that were written against the given property and value
+         * names, so reordered or added values and properties still map to the same state.
+         * Properties the block gained since keep their default value.
+         * @return the state, or {@code null} if a stored property or value no longer exists
+         */
+        @Nullable
+        public BlockState resolve(String[] propertyNames, String[][] valueNames, int[] valueIndices) {
+            if(valueIndices.length != propertyNames.length) return null;
+
+            BlockState state = block.defaultBlockState();
+            for(int i = 0; i < propertyNames.length; i++) {
+                Property<?> property = block.getStateDefinition().getProperty(propertyNames[i]);
+                if(property == null || valueIndices[i] < 0 || valueIndices[i] >= valueNames[i].length) return null;
+
+                Optional<? extends Comparable<?>> value = property.getValue(valueNames[i][valueIndices[i]]);
+                if(value.isEmpty()) return null;
+                state = withValue(state, property, value.get());
+            }
+            return state;
+        }
+
+        public Block getBlock() {
+            return block;
+        }
+
+        /**
+         * @return the state for the given per-property value indices,
+         *         or {@code null} if they do not fit this block's properties
+         */
+        @Nullable
+        public BlockState resolve(int[] valueIndices) {
+            if(valueIndices.length != properties.length) return null;
+
+            int ordinal = 0;
+            for(int i = 0; i < properties.length; i++) {
+                if(valueIndices[i] < 0 || valueIndices[i] >= values[i].size()) return null;
+                ordinal += valueIndices[i] * strides[i];
+            }
+            return states[ordinal];
+        }
+
+        public int[] encode(BlockState state) {
+            int[] encoded = new int[properties.length];
+            for(int i = 0; i < properties.length; i++) {
+                encoded[i] = valueIndices[i].getInt(state.getValue(properties[i]));
+            }
+            return encoded;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T extends Comparable<T>> String valueName(Property<T> property, Comparable<?> value) {
+            return property.getName((T) value);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T extends Comparable<T>> BlockState withValue(BlockState state, Property<T> property,
+                                                                      Comparable<?> value) {
+            return state.setValue(property, (T) value);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.moshang.fantasystructure.developed;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.builder.ArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.commands.arguments.coordinates.BlockPosArgument;
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.level.ServerLevel;
+import org.moshang.fantasystructure.FantasyStructure;
+import org.moshang.fantasystructure.helper.builder.BuildPriority;
+import org.moshang.fantasystructure.helper.builder.StructureBuilderManager;
+
+import java.util.Locale;
+
+/**
+ * {@code /fantasystructure build <pause|resume|cancel|priority> <controller pos>}, to control
+ * stored builds whether or not their chunk is loaded.
+ */
+public class Command {
+    public static void register(CommandDispatcher<CommandSourceStack> dispatcher) {
+        ArgumentBuilder<CommandSourceStack, ?> priority = Commands.argument("pos", BlockPosArgument.blockPos());
+        for(BuildPriority value : BuildPriority.values()) {
+            String name = value.name().toLowerCase(Locale.ROOT);
+            priority.then(Commands.literal(name).executes(context -> control(context,
+                    (level, pos) -> StructureBuilderManager.setPriority(level, pos, value), "set to " + name)));
+        }
+
+        dispatcher.register(Commands.literal(FantasyStructure.MODID)
+                .requires(source -> source.hasPermission(2))
+                .then(Commands.literal("build")
+                        .then(Commands.literal("pause").then(Commands.argument("pos", BlockPosArgument.blockPos())
+                                .executes(context -> control(context, StructureBuilderManager::pause, "paused"))))
+                        .then(Commands.literal("resume").then(Commands.argument("pos", BlockPosArgument.blockPos())
+                                .executes(context -> control(context, StructureBuilderManager::resume, "resumed"))))
+                        .then(Commands.literal("cancel").then(Commands.argument("pos", BlockPosArgument.blockPos())
+                                .executes(context -> control(context, StructureBuilderManager::cancel, "cancelled"))))
+                        .then(Commands.literal("priority").then(priority))));
+    }
+
+    private static int control(CommandContext<CommandSourceStack> context, BuildControl control, String done) {
+        ServerLevel level = context.getSource().getLevel();
+        BlockPos pos = BlockPosArgument.getBlockPos(context, "pos");
+        if(!control.apply(level, pos)) {
+            context.getSource().sendFailure(Component.literal("No build at " + pos.toShortString()));
+            return 0;
+        }
+        context.getSource().sendSuccess(() -> Component.literal("Build at " + pos.toShortString() + " " + done), true);
+        return 1;
+    }
+
+    @FunctionalInterface
+    private interface BuildControl {
+        boolean apply(ServerLevel level, BlockPos pos);
+    }
+}
@@ -0,0 +1,409 @@
+package org.moshang.fantasystructure.helper;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import org.moshang.fantasystructure.data.BlockInfo;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.data.blueprint.PaletteVoxels;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Flat form of a pattern for matching: one slot per non-empty cell in section order,
+ * with controller-relative offsets in plain int arrays. Cells that only require an
+ * exact state are checked by reference, everything else falls back to {@link BlockInfo}.
+ * Immutable apart from the lazily built orientations, so one instance is shared
+ * by every controller of a blueprint.
+ */
+public class CompiledPattern {
+    public static final byte KIND_STATE = 0;
+    public static final byte KIND_INFO = 1;
+
+    private static final long BYTES_PER_CELL = 4 * 4 + 1 + 8 + 8;
+    private static final int ANCHOR_COUNT = 4;
+    private static final int MAX_REQUIREMENTS = 64;
+
+    private final PatternOrientation orientation;
+    private final int size;
+    private final int[] dx, dy, dz;
+    private final int[] cells;
+    private final byte[] kinds;
+    private final BlockState[] states;
+    private final BlockInfo[] infos;
+    private int[] anchors;
+    /**
+     * Required states per chunk section, keyed by the controller's position within its
+     * section. Least recently used alignments are dropped beyond {@link #MAX_REQUIREMENTS}.
+     */
+    private final Int2ObjectLinkedOpenHashMap<SectionRequirements> requirements = new Int2ObjectLinkedOpenHashMap<>();
+    private long requirementBytes = 0;
+    /** Lazily built transformed copies, only present on the untransformed pattern. */
+    private final CompiledPattern[] oriented;
+    /** Told whenever lazily built data makes this pattern larger, see {@link #getBytes()}. */
+    @Nullable
+    private final Runnable onGrow;
+
+    private CompiledPattern(PatternOrientation orientation, int size, @Nullable Runnable onGrow) {
+        this.orientation = orientation;
+        this.size = size;
+        this.onGrow = onGrow;
+        this.dx = new int[size];
+        this.dy = new int[size];
+        this.dz = new int[size];
+        this.cells = new int[size];
+        this.kinds = new byte[size];
+        this.states = new BlockState[size];
+        this.infos = new BlockInfo[size];
+        this.oriented = orientation == PatternOrientation.NONE
+                ? new CompiledPattern[PatternOrientation.values().length] : null;
+    }
+
+    public static CompiledPattern compile(PaletteVoxels voxels) {
+        return compile(voxels, null);
+    }
+
+    /**
+     * @param onGrow run after orientations or section requirements were built, outside any lock
+     */
+    public static CompiledPattern compile(PaletteVoxels voxels, @Nullable Runnable onGrow) {
+        CompiledPattern compiled = new CompiledPattern(PatternOrientation.NONE, voxels.getNonEmptyCount(), onGrow);
+        int[] next = new int[1];
+        voxels.forEach((x, y, z, info) -> {
+            int i = next[0]++;
+            compiled.dx[i] = x;
+            compiled.dy[i] = y;
+            compiled.dz[i] = z;
+            compiled.cells[i] = voxels.cellIndex(x, y, z);
+            compiled.kinds[i] = info.isExactState() ? KIND_STATE : KIND_INFO;
+            compiled.states[i] = info.getExpectedState();
+            compiled.infos[i] = info;
+            return true;
+        });
+        compiled.anchors = compiled.selectAnchors();
+        return compiled;
+    }
+
+    /**
+     * @return this pattern mirrored and rotated around the controller, built once per orientation
+     */
+    public CompiledPattern orient(PatternOrientation target) {
+        if(target == orientation) return this;
+        if(oriented == null) throw new IllegalStateException("Only the untransformed pattern can be oriented");
+
+        CompiledPattern result;
+        synchronized (oriented) {
+            result = oriented[target.ordinal()];
+            if(result != null) return result;
+
+            result = transform(target);
+            oriented[target.ordinal()] = result;
+        }
+        if(onGrow != null) {
+            onGrow.run();
+        }
+        return result;
+    }
+
+    private CompiledPattern transform(PatternOrientation target) {
+        CompiledPattern result = new CompiledPattern(target, size, onGrow);
+        Map<BlockInfo, BlockInfo> transformed = new IdentityHashMap<>();
+        for(int i = 0; i < size; i++) {
+            result.dx[i] = target.transformX(dx[i], dz[i]);
+            result.dy[i] = dy[i];
+            result.dz[i] = target.transformZ(dx[i], dz[i]);
+            result.cells[i] = cells[i];
+            result.kinds[i] = kinds[i];
+            result.infos[i] = transformed.computeIfAbsent(infos[i], info -> info.transform(target));
+            result.states[i] = result.infos[i].getExpectedState();
+        }
+        result.anchors = anchors;
+        return result;
+    }
+
+    /**
+     * Picks a few cells whose requirements are rarest in the pattern, far from the
+     * controller first, so that a wrong orientation almost always fails on them
+     * without a full scan. Exact-state cells come first; patterns with too few of
+     * them are topped up with tag or NBT cells, which are checked by state only.
+     */
+    private int[] selectAnchors() {
+        IntArrayList selected = rarestCells(KIND_STATE, ANCHOR_COUNT);
+        if(selected.size() < ANCHOR_COUNT) {
+            selected.addAll(rarestCells(KIND_INFO, ANCHOR_COUNT - selected.size()));
+        }
+        return selected.toIntArray();
+    }
+
+    private IntArrayList rarestCells(byte kind, int limit) {
+        Reference2IntOpenHashMap<Object> counts = new Reference2IntOpenHashMap<>();
+        IntArrayList candidates = new IntArrayList();
+        for(int i = 0; i < size; i++) {
+            if(kinds[i] != kind) continue;
+            counts.addTo(requirement(i), 1);
+            candidates.add(i);
+        }
+
+        candidates.sort((int a, int b) -> {
+            int byCount = Integer.compare(counts.getInt(requirement(a)), counts.getInt(requirement(b)));
+            if(byCount != 0) return byCount;
+            return Integer.compare(distance(b), distance(a));
+        });
+        return new IntArrayList(candidates.subList(0, Math.min(limit, candidates.size())));
+    }
+
+    private Object requirement(int slot) {
+        return kinds[slot] == KIND_STATE ? states[slot] : infos[slot];
+    }
+
+    private int distance(int slot) {
+        return Math.abs(dx[slot]) + Math.abs(dy[slot]) + Math.abs(dz[slot]);
+    }
+
+    /**
+     * Checks only the anchor cells, reading straight from the level.
+     * @return {@code false} if this orientation cannot match at {@code pos}
+     */
+    public boolean anchorsMatch(Level level, BlockPos pos) {
+        BlockPos.MutableBlockPos worldPos = new BlockPos.MutableBlockPos();
+        for(int slot : anchors) {
+            worldPos.setWithOffset(pos, dx[slot], dy[slot], dz[slot]);
+            BlockState state = level.getBlockState(worldPos);
+            boolean matches = kinds[slot] == KIND_STATE ? state == states[slot] : infos[slot].matchesState(state);
+            if(!matches) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the states each chunk section must contain with the section palettes,
+     * without visiting any cell. Palettes may list states that are no longer placed,
+     * so this only proves a mismatch, never a match.
+     * @return {@code true} if some section cannot contain a state it requires
+     */
+    public boolean quickReject(BlockPos pos, SectionGrid grid) {
+        SectionRequirements required = getRequirements(pos);
+        int baseX = SectionPos.blockToSectionCoord(pos.getX());
+        int baseY = SectionPos.blockToSectionCoord(pos.getY());
+        int baseZ = SectionPos.blockToSectionCoord(pos.getZ());
+        for(int s = 0; s < required.sectionX().length; s++) {
+            PalettedContainer<BlockState> container = grid.getContainer(
+                    baseX + required.sectionX()[s], baseY + required.sectionY()[s], baseZ + required.sectionZ()[s]
+            );
+            if(container == null) return true;
+            for(Predicate<BlockState> predicate : required.predicates()[s]) {
+                if(!container.maybeHas(predicate)) return true;
+            }
+        }
+        return false;
+    }
+
+    private SectionRequirements getRequirements(BlockPos pos) {
+        int key = (pos.getX() & 15) << 8 | (pos.getY() & 15) << 4 | (pos.getZ() & 15);
+        SectionRequirements required;
+        synchronized (requirements) {
+            required = requirements.getAndMoveToLast(key);
+            if(required != null) return required;
+
+            required = buildRequirements(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
+            requirements.putAndMoveToLast(key, required);
+            requirementBytes += required.getBytes();
+            while(requirements.size() > MAX_REQUIREMENTS) {
+                requirementBytes -= requirements.removeFirst().getBytes();
+            }
+        }
+        if(onGrow != null) {
+            onGrow.run();
+        }
+        return required;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SectionRequirements buildRequirements(int alignX, int alignY, int alignZ) {
+        Map<BlockInfo, Predicate<BlockState>> predicates = new IdentityHashMap<>();
+        Long2ObjectLinkedOpenHashMap<Set<Predicate<BlockState>>> bySection = new Long2ObjectLinkedOpenHashMap<>();
+        for(int i = 0; i < size; i++) {
+            Predicate<BlockState> predicate = predicates.get(infos[i]);
+            if(predicate == null) {
+                BlockState expected = states[i];
+                predicate = kinds[i] == KIND_STATE ? state -> state == expected : infos[i]::matchesState;
+                predicates.put(infos[i], predicate);
+            }
+            long section = SectionPos.asLong((alignX + dx[i]) >> 4, (alignY + dy[i]) >> 4, (alignZ + dz[i]) >> 4);
+            bySection.computeIfAbsent(section, k -> new ReferenceOpenHashSet<>()).add(predicate);
+        }
+
+        int count = bySection.size();
+        int[] sectionX = new int[count], sectionY = new int[count], sectionZ = new int[count];
+        Predicate<BlockState>[][] required = new Predicate[count][];
+        int s = 0;
+        for(Long2ObjectMap.Entry<Set<Predicate<BlockState>>> entry : bySection.long2ObjectEntrySet()) {
+            sectionX[s] = SectionPos.x(entry.getLongKey());
+            sectionY[s] = SectionPos.y(entry.getLongKey());
+            sectionZ[s] = SectionPos.z(entry.getLongKey());
+            required[s] = entry.getValue().toArray(new Predicate[0]);
+            s++;
+        }
+        return new SectionRequirements(sectionX, sectionY, sectionZ, required);
+    }
+
+    /**
+     * @return the slot of the first mismatching cell for a structure at {@code pos}, or -1
+     */
+    public int firstMismatch(Level level, BlockPos pos, SectionGrid grid) {
+        BlockPos.MutableBlockPos worldPos = new BlockPos.MutableBlockPos();
+        int px = pos.getX(), py = pos.getY(), pz = pos.getZ();
+        for(int i = 0; i < size; i++) {
+            int x = px + dx[i], y = py + dy[i], z = pz + dz[i];
+            BlockState state = grid.getBlockState(x, y, z);
+            if(kinds[i] == KIND_STATE) {
+                if(state != states[i]) return i;
+            } else if(!infos[i].matches(state, level, worldPos.set(x, y, z))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the cell index of every mismatching slot in {@code mismatches}.
+     * @return the number of mismatching cells
+     */
+    public int collectMismatches(Level level, BlockPos pos, SectionGrid grid, BitSet mismatches) {
+        BlockPos.MutableBlockPos worldPos = new BlockPos.MutableBlockPos();
+        int px = pos.getX(), py = pos.getY(), pz = pos.getZ();
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            int x = px + dx[i], y = py + dy[i], z = pz + dz[i];
+            BlockState state = grid.getBlockState(x, y, z);
+            boolean matches = kinds[i] == KIND_STATE
+                    ? state == states[i]
+                    : infos[i].matches(state, level, worldPos.set(x, y, z));
+            if(!matches) {
+                mismatches.set(cells[i]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds every mismatching cell with its world position and kind to {@code out},
+     * without clearing it first.
+     * @return the number of mismatching cells
+     */
+    public int diff(Level level, BlockPos pos, SectionGrid grid, MismatchBuffer out) {
+        BlockPos.MutableBlockPos worldPos = new BlockPos.MutableBlockPos();
+        int px = pos.getX(), py = pos.getY(), pz = pos.getZ();
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            int x = px + dx[i], y = py + dy[i], z = pz + dz[i];
+            BlockState state = grid.getBlockState(x, y, z);
+            boolean matches = kinds[i] == KIND_STATE
+                    ? state == states[i]
+                    : infos[i].matches(state, level, worldPos.set(x, y, z));
+            if(!matches) {
+                out.add(BlockPos.asLong(x, y, z), classify(i, state));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private byte classify(int slot, BlockState actual) {
+        if(actual.isAir()) return MismatchBuffer.MISSING;
+
+        BlockState expected = states[slot];
+        boolean sameBlock = expected != null ? actual.is(expected.getBlock()) : infos[slot].matchesState(actual);
+        return sameBlock ? MismatchBuffer.WRONG : MismatchBuffer.OBSTRUCTED;
+    }
+
+    /**
+     * Variant for snapshots off the server thread: only block states are compared,
+     * slots that also need block entity data are added to {@code deferred} when
+     * their state matches, to be verified on the server thread.
+     * @return the number of mismatching cells
+     */
+    public int collectMismatches(BlockPos pos, SectionGrid snapshot, BitSet mismatches, IntList deferred) {
+        int px = pos.getX(), py = pos.getY(), pz = pos.getZ();
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            BlockState state = snapshot.getBlockState(px + dx[i], py + dy[i], pz + dz[i]);
+            boolean matches;
+            if(kinds[i] == KIND_STATE) {
+                matches = state == states[i];
+            } else {
+                matches = infos[i].matchesState(state);
+                if(matches && infos[i].needsBlockEntity()) {
+                    deferred.add(i);
+                }
+            }
+            if(!matches) {
+                mismatches.set(cells[i]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getCell(int slot) {
+        return cells[slot];
+    }
+    public PatternOrientation getOrientation() {
+        return orientation;
+    }
+    public int size() {
+        return size;
+    }
+    public int getDx(int slot) {
+        return dx[slot];
+    }
+    public int getDy(int slot) {
+        return dy[slot];
+    }
+    public int getDz(int slot) {
+        return dz[slot];
+    }
+    public BlockInfo getInfo(int slot) {
+        return infos[slot];
+    }
+    /**
+     * Approximate heap footprint in bytes.
+     */
+    public long getBytes() {
+        long bytes = 64L + size * BYTES_PER_CELL;
+        synchronized (requirements) {
+            bytes += requirementBytes;
+        }
+        if(oriented != null) {
+            for(CompiledPattern pattern : oriented) {
+                if(pattern != null) bytes += pattern.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    private record SectionRequirements(int[] sectionX, int[] sectionY, int[] sectionZ,
+                                       Predicate<BlockState>[][] predicates) {
+        long getBytes() {
+            long bytes = 96L + sectionX.length * 32L;
+            for(Predicate<BlockState>[] section : predicates) {
+                bytes += section.length * 8L;
+            }
+            return bytes;
+        }
+    }
+}
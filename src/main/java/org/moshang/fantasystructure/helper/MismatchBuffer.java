@@ -0,0 +1,94 @@
+package org.moshang.fantasystructure.helper;
+
+import net.minecraft.core.BlockPos;
+
+import java.util.Arrays;
+
+/**
+ * Reusable result of {@link StructurePattern#diff}: packed world positions and
+ * mismatch kinds in primitive arrays. With a cap, further mismatches are only
+ * counted, so a diff of a completely missing structure stays bounded in memory.
+ */
+public class MismatchBuffer {
+    /** Nothing is at the position yet. */
+    public static final byte MISSING = 0;
+    /** The right block is there, but with other properties or data. */
+    public static final byte WRONG = 1;
+    /** Another block occupies the position. */
+    public static final byte OBSTRUCTED = 2;
+
+    private long[] positions;
+    private byte[] kinds;
+    private int size;
+    private int total;
+    private int cap;
+
+    public MismatchBuffer() {
+        this(0);
+    }
+
+    /**
+     * @param cap maximum number of stored mismatches, 0 for no limit
+     */
+    public MismatchBuffer(int cap) {
+        this.cap = cap;
+        int initial = cap > 0 ? Math.min(cap, 64) : 64;
+        this.positions = new long[initial];
+        this.kinds = new byte[initial];
+    }
+
+    public void clear() {
+        size = 0;
+        total = 0;
+    }
+
+    /**
+     * @return {@code false} if the mismatch was only counted because the cap is reached
+     */
+    public boolean add(long pos, byte kind) {
+        total++;
+        if(cap > 0 && size >= cap) return false;
+
+        if(size == positions.length) {
+            int capacity = positions.length * 2;
+            if(cap > 0) capacity = Math.min(capacity, cap);
+            positions = Arrays.copyOf(positions, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+        }
+        positions[size] = pos;
+        kinds[size] = kind;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return total == 0;
+    }
+    /**
+     * @return the number of mismatches found, including those beyond the cap
+     */
+    public int getTotal() {
+        return total;
+    }
+    public boolean isTruncated() {
+        return total > size;
+    }
+    public long getPos(int index) {
+        return positions[index];
+    }
+    public BlockPos getBlockPos(int index) {
+        return BlockPos.of(positions[index]);
+    }
+    public byte getKind(int index) {
+        return kinds[index];
+    }
+    public int getCap() {
+        return cap;
+    }
+    public void setCap(int cap) {
+        this.cap = cap;
+    }
+}
@@ -0,0 +1,89 @@
+package org.moshang.fantasystructure.helper;
+
+import net.minecraft.world.level.block.Mirror;
+import net.minecraft.world.level.block.Rotation;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * The eight horizontal orientations a structure can be built in. Like vanilla
+ * structure templates, the mirror is applied first and the rotation second, both
+ * around the controller. Mirroring across the other axis is covered by combining
+ * {@link Mirror#FRONT_BACK} with a half turn.
+ */
+public enum PatternOrientation {
+    NONE(Mirror.NONE, Rotation.NONE),
+    CLOCKWISE_90(Mirror.NONE, Rotation.CLOCKWISE_90),
+    CLOCKWISE_180(Mirror.NONE, Rotation.CLOCKWISE_180),
+    COUNTERCLOCKWISE_90(Mirror.NONE, Rotation.COUNTERCLOCKWISE_90),
+    MIRRORED(Mirror.FRONT_BACK, Rotation.NONE),
+    MIRRORED_CLOCKWISE_90(Mirror.FRONT_BACK, Rotation.CLOCKWISE_90),
+    MIRRORED_CLOCKWISE_180(Mirror.FRONT_BACK, Rotation.CLOCKWISE_180),
+    MIRRORED_COUNTERCLOCKWISE_90(Mirror.FRONT_BACK, Rotation.COUNTERCLOCKWISE_90);
+
+    private static final PatternOrientation[] VALUES = values();
+
+    private final Mirror mirror;
+    private final Rotation rotation;
+
+    PatternOrientation(Mirror mirror, Rotation rotation) {
+        this.mirror = mirror;
+        this.rotation = rotation;
+    }
+
+    public static PatternOrientation byId(int id) {
+        return id >= 0 && id < VALUES.length ? VALUES[id] : NONE;
+    }
+
+    public int transformX(int x, int z) {
+        if(mirror == Mirror.FRONT_BACK) x = -x;
+        return switch(rotation) {
+            case NONE -> x;
+            case CLOCKWISE_90 -> -z;
+            case CLOCKWISE_180 -> -x;
+            case COUNTERCLOCKWISE_90 -> z;
+        };
+    }
+
+    public int transformZ(int x, int z) {
+        if(mirror == Mirror.FRONT_BACK) x = -x;
+        return switch(rotation) {
+            case NONE -> z;
+            case CLOCKWISE_90 -> x;
+            case CLOCKWISE_180 -> -z;
+            case COUNTERCLOCKWISE_90 -> -x;
+        };
+    }
+
+    /**
+     * Maps a transformed offset back into the blueprint's own frame.
+     */
+    public int inverseX(int x, int z) {
+        int ix = switch(rotation) {
+            case NONE -> x;
+            case CLOCKWISE_90 -> z;
+            case CLOCKWISE_180 -> -x;
+            case COUNTERCLOCKWISE_90 -> -z;
+        };
+        return mirror == Mirror.FRONT_BACK ? -ix : ix;
+    }
+
+    public int inverseZ(int x, int z) {
+        return switch(rotation) {
+            case NONE -> z;
+            case CLOCKWISE_90 -> -x;
+            case CLOCKWISE_180 -> -z;
+            case COUNTERCLOCKWISE_90 -> x;
+        };
+    }
+
+    public BlockState apply(BlockState state) {
+        return state.mirror(mirror).rotate(rotation);
+    }
+
+    public Mirror getMirror() {
+        return mirror;
+    }
+    public Rotation getRotation() {
+        return rotation;
+    }
+}
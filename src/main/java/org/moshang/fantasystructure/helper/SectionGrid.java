@@ -0,0 +1,108 @@
+package org.moshang.fantasystructure.helper;
+
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * The block state containers of all chunk sections covering a box, resolved once
+ * so that states can be read per cell with index arithmetic only, without going
+ * through the chunk map for every block. Instances are reused between checks,
+ * except snapshots, which own copies of the containers and can be read from any thread.
+ */
+public class SectionGrid {
+    private static final BlockState AIR = Blocks.AIR.defaultBlockState();
+    private static final ThreadLocal<SectionGrid> LOCAL = ThreadLocal.withInitial(SectionGrid::new);
+
+    private int minSX, minSY, minSZ;
+    private int lenSX, lenSY, lenSZ;
+    @SuppressWarnings("unchecked")
+    private PalettedContainer<BlockState>[] states = new PalettedContainer[0];
+
+    /**
+     * @return a grid owned by the calling thread, valid until its next {@link #resolve}.
+     *         Call {@link #clear()} when done, so it does not keep chunk sections alive.
+     */
+    public static SectionGrid local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Copies the containers under {@code bounds}, must be called on the server thread.
+     */
+    public static SectionGrid snapshot(Level level, BoundingBox bounds) {
+        return new SectionGrid().resolve(level, bounds, true);
+    }
+
+    public SectionGrid resolve(Level level, BoundingBox bounds) {
+        return resolve(level, bounds, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private SectionGrid resolve(Level level, BoundingBox bounds, boolean copy) {
+        minSX = SectionPos.blockToSectionCoord(bounds.minX());
+        minSY = SectionPos.blockToSectionCoord(bounds.minY());
+        minSZ = SectionPos.blockToSectionCoord(bounds.minZ());
+        lenSX = SectionPos.blockToSectionCoord(bounds.maxX()) - minSX + 1;
+        lenSY = SectionPos.blockToSectionCoord(bounds.maxY()) - minSY + 1;
+        lenSZ = SectionPos.blockToSectionCoord(bounds.maxZ()) - minSZ + 1;
+
+        int size = lenSX * lenSY * lenSZ;
+        if(states.length < size) {
+            states = new PalettedContainer[size];
+        }
+
+        for(int cz = 0; cz < lenSZ; cz++) {
+            for(int cx = 0; cx < lenSX; cx++) {
+                LevelChunk chunk = level.getChunk(minSX + cx, minSZ + cz);
+                LevelChunkSection[] sections = chunk.getSections();
+                for(int sy = 0; sy < lenSY; sy++) {
+                    int sectionIndex = chunk.getSectionIndexFromSectionY(minSY + sy);
+                    PalettedContainer<BlockState> container = sectionIndex >= 0 && sectionIndex < sections.length
+                            ? sections[sectionIndex].getStates() : null;
+                    states[(sy * lenSZ + cz) * lenSX + cx] = copy && container != null ? container.copy() : container;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Drops the resolved containers, the array is kept for the next {@link #resolve}.
+     */
+    public void clear() {
+        Arrays.fill(states, null);
+        lenSX = lenSY = lenSZ = 0;
+    }
+
+    /**
+     * @return the container of the section at the given section coordinates, or
+     *         {@code null} outside the grid or the level's height
+     */
+    @Nullable
+    public PalettedContainer<BlockState> getContainer(int sectionX, int sectionY, int sectionZ) {
+        int sx = sectionX - minSX;
+        int sy = sectionY - minSY;
+        int sz = sectionZ - minSZ;
+        if(sx < 0 || sy < 0 || sz < 0 || sx >= lenSX || sy >= lenSY || sz >= lenSZ) return null;
+        return states[(sy * lenSZ + sz) * lenSX + sx];
+    }
+
+    public BlockState getBlockState(int x, int y, int z) {
+        int sx = (x >> 4) - minSX;
+        int sy = (y >> 4) - minSY;
+        int sz = (z >> 4) - minSZ;
+        if(sx < 0 || sy < 0 || sz < 0 || sx >= lenSX || sy >= lenSY || sz >= lenSZ) return AIR;
+
+        PalettedContainer<BlockState> container = states[(sy * lenSZ + sz) * lenSX + sx];
+        return container == null ? AIR : container.get(x & 15, y & 15, z & 15);
+    }
+}
@@ -1,41 +1,256 @@
 package org.moshang.fantasystructure.helper;
 
-import com.mojang.logging.LogUtils;
 import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+import org.jetbrains.annotations.Nullable;
 import org.moshang.fantasystructure.data.BlockInfo;
-import org.slf4j.Logger;
+import org.moshang.fantasystructure.data.blueprint.PaletteVoxels;
 
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public class StructurePattern {
-    private final Map<BlockPos, BlockInfo> blockPattern;
+    private final Supplier<PaletteVoxels> voxels;
+    private final Supplier<Map<BlockPos, BlockInfo>> blockPattern;
+    private final Supplier<CompiledPattern> compiled;
+    private final Runnable onUse;
     private final BlockPos controllerPos;
-
-    private static final Logger LOGGER = LogUtils.getLogger();
+    @Nullable
+    private final ResourceLocation blueprintId;
 
     public StructurePattern(Map<BlockPos, BlockInfo> blockPattern, BlockPos controllerPos) {
+        PaletteVoxels voxels = PaletteVoxels.fromMap(blockPattern);
+        Map<BlockPos, BlockInfo> view = Collections.unmodifiableMap(blockPattern);
+        CompiledPattern compiled = CompiledPattern.compile(voxels);
+        this.voxels = () -> voxels;
+        this.blockPattern = () -> view;
+        this.compiled = () -> compiled;
+        this.onUse = () -> {};
+        this.controllerPos = controllerPos;
+        this.blueprintId = null;
+    }
+
+    /**
+     * The suppliers are asked on every use, so a blueprint-backed pattern does
+     * not keep its voxels alive once the blueprint cache evicted them.
+     * {@code onUse} is told once per check through {@link #recordUse()}.
+     */
+    public StructurePattern(ResourceLocation blueprintId, Supplier<PaletteVoxels> voxels,
+                            Supplier<Map<BlockPos, BlockInfo>> blockPattern,
+                            Supplier<CompiledPattern> compiled, Runnable onUse, BlockPos controllerPos) {
+        this.voxels = voxels;
         this.blockPattern = blockPattern;
+        this.compiled = compiled;
+        this.onUse = onUse;
         this.controllerPos = controllerPos;
+        this.blueprintId = blueprintId;
     }
 
+    /**
+     * Cells are visited section by section, and the chunk sections under the
+     * structure are resolved once up front instead of per block. Use
+     * {@link #diff} to find out what does not match.
+     */
     public boolean matches(Level level, BlockPos pos) {
-        for(Map.Entry<BlockPos, BlockInfo> entry : blockPattern.entrySet()) {
-            BlockPos worldPos = pos.offset(entry.getKey());
-            BlockInfo info = entry.getValue();
-            if(!info.matches(level, worldPos)) {
-                LOGGER.warn("此处有问题：{}， 原因：expected: {}, now: {}", worldPos, info.getExpectedState(), level.getBlockState(worldPos));
+        return matches(level, pos, PatternOrientation.NONE);
+    }
+
+    /**
+     * Same as {@link #matches(Level, BlockPos)} for the structure built in {@code orientation}.
+     */
+    public boolean matches(Level level, BlockPos pos, PatternOrientation orientation) {
+        SectionGrid grid = SectionGrid.local().resolve(level, getBounds(pos, orientation));
+        try {
+            return compiled.get().orient(orientation).firstMismatch(level, pos, grid) < 0;
+        } finally {
+            grid.clear();
+        }
+    }
+
+    /**
+     * Checks only the chunk section palettes, see {@link CompiledPattern#quickReject}.
+     * @return {@code true} if the structure is certainly not formed in {@code orientation}
+     */
+    public boolean quickReject(Level level, BlockPos pos, PatternOrientation orientation) {
+        SectionGrid grid = SectionGrid.local().resolve(level, getBounds(pos, orientation));
+        try {
+            return compiled.get().orient(orientation).quickReject(pos, grid);
+        } finally {
+            grid.clear();
+        }
+    }
+
+    /**
+     * Collects all mismatching cells in one pass into {@code out}, which is cleared first.
+     * @return {@code out}
+     */
+    public MismatchBuffer diff(Level level, BlockPos pos, PatternOrientation orientation, MismatchBuffer out) {
+        out.clear();
+        SectionGrid grid = SectionGrid.local().resolve(level, getBounds(pos, orientation));
+        try {
+            compiled.get().orient(orientation).diff(level, pos, grid, out);
+        } finally {
+            grid.clear();
+        }
+        return out;
+    }
+
+    /**
+     * Checks every cell without stopping at the first mismatch.
+     * @return the number of mismatching cells, whose indices are set in {@code mismatches}
+     */
+    public int collectMismatches(Level level, BlockPos pos, BitSet mismatches) {
+        return collectMismatches(level, pos, PatternOrientation.NONE, mismatches);
+    }
+
+    public int collectMismatches(Level level, BlockPos pos, PatternOrientation orientation, BitSet mismatches) {
+        SectionGrid grid = SectionGrid.local().resolve(level, getBounds(pos, orientation));
+        try {
+            return compiled.get().orient(orientation).collectMismatches(level, pos, grid, mismatches);
+        } finally {
+            grid.clear();
+        }
+    }
+
+    /**
+     * Tests only a few distinctive anchor cells per orientation.
+     * @return a bit mask of the {@link PatternOrientation} ordinals that may match at {@code pos}
+     */
+    public int detectOrientations(Level level, BlockPos pos) {
+        CompiledPattern program = compiled.get();
+        int candidates = 0;
+        for(PatternOrientation orientation : PatternOrientation.values()) {
+            if(program.orient(orientation).anchorsMatch(level, pos)) {
+                candidates |= 1 << orientation.ordinal();
+            }
+        }
+        return candidates;
+    }
 
-                return false;
+    /**
+     * @return the first orientation other than {@code current} the structure fully matches in,
+     *         or {@code null}
+     */
+    @Nullable
+    public PatternOrientation findOrientation(Level level, BlockPos pos, PatternOrientation current) {
+        int candidates = detectOrientations(level, pos) & ~(1 << current.ordinal());
+        for(PatternOrientation orientation : PatternOrientation.values()) {
+            if((candidates & 1 << orientation.ordinal()) != 0 && matches(level, pos, orientation)) {
+                return orientation;
             }
         }
-        return true;
+        return null;
     }
 
+    /**
+     * @return the cell index of {@code worldPos} for a structure at {@code pos},
+     *         or -1 if no block is required there
+     */
+    public int cellIndex(BlockPos pos, BlockPos worldPos) {
+        return cellIndex(pos, PatternOrientation.NONE, worldPos);
+    }
+
+    public int cellIndex(BlockPos pos, PatternOrientation orientation, BlockPos worldPos) {
+        PaletteVoxels cells = voxels.get();
+        int dx = worldPos.getX() - pos.getX();
+        int dz = worldPos.getZ() - pos.getZ();
+        int x = orientation.inverseX(dx, dz);
+        int y = worldPos.getY() - pos.getY();
+        int z = orientation.inverseZ(dx, dz);
+        return cells.getRelative(x, y, z) == null ? -1 : cells.cellIndex(x, y, z);
+    }
+
+    /**
+     * Checks a single position of a structure at {@code pos}. Positions without
+     * a required block always match.
+     */
+    public boolean matchesAt(Level level, BlockPos pos, BlockPos worldPos) {
+        return matchesAt(level, pos, PatternOrientation.NONE, worldPos);
+    }
+
+    public boolean matchesAt(Level level, BlockPos pos, PatternOrientation orientation, BlockPos worldPos) {
+        int dx = worldPos.getX() - pos.getX();
+        int dz = worldPos.getZ() - pos.getZ();
+        BlockInfo info = voxels.get().getRelative(
+                orientation.inverseX(dx, dz), worldPos.getY() - pos.getY(), orientation.inverseZ(dx, dz)
+        );
+        return info == null || info.transform(orientation).matches(level, worldPos);
+    }
+
+    /**
+     * @return {@code true} if the cell at {@code worldPos} requires block entity data
+     */
+    public boolean needsBlockEntityAt(BlockPos pos, PatternOrientation orientation, BlockPos worldPos) {
+        int dx = worldPos.getX() - pos.getX();
+        int dz = worldPos.getZ() - pos.getZ();
+        BlockInfo info = voxels.get().getRelative(
+                orientation.inverseX(dx, dz), worldPos.getY() - pos.getY(), orientation.inverseZ(dx, dz)
+        );
+        return info != null && info.needsBlockEntity();
+    }
+
+    public BoundingBox getBounds(BlockPos pos) {
+        return getBounds(pos, PatternOrientation.NONE);
+    }
+
+    public BoundingBox getBounds(BlockPos pos, PatternOrientation orientation) {
+        PaletteVoxels cells = voxels.get();
+        BlockPos offset = cells.getControllerOffset();
+        int minX = -offset.getX(), minZ = -offset.getZ();
+        int maxX = minX + Math.max(cells.getSizeX(), 1) - 1;
+        int maxZ = minZ + Math.max(cells.getSizeZ(), 1) - 1;
+        int x1 = orientation.transformX(minX, minZ), z1 = orientation.transformZ(minX, minZ);
+        int x2 = orientation.transformX(maxX, maxZ), z2 = orientation.transformZ(maxX, maxZ);
+        int minY = pos.getY() - offset.getY();
+        return new BoundingBox(pos.getX() + Math.min(x1, x2), minY, pos.getZ() + Math.min(z1, z2),
+                pos.getX() + Math.max(x1, x2), minY + Math.max(cells.getSizeY(), 1) - 1,
+                pos.getZ() + Math.max(z1, z2));
+    }
+
+    /**
+     * @return the box covering the structure in every orientation
+     */
+    public BoundingBox getEnclosingBounds(BlockPos pos) {
+        BoundingBox bounds = getBounds(pos);
+        for(PatternOrientation orientation : PatternOrientation.values()) {
+            bounds.encapsulate(getBounds(pos, orientation));
+        }
+        return bounds;
+    }
+
+    /**
+     * Marks one use of the pattern for the blueprint cache, called once per check
+     * rather than per cell lookup.
+     */
+    public void recordUse() {
+        onUse.run();
+    }
+
+    public CompiledPattern getCompiled() {
+        return compiled.get();
+    }
+    public PaletteVoxels getVoxels() {
+        return voxels.get();
+    }
+    /**
+     * Map view kept for callers that predate {@link PaletteVoxels},
+     * it is only built when first requested.
+     */
     public Map<BlockPos, BlockInfo> getBlockPattern() {
-        return blockPattern;
+        return blockPattern.get();
     }
     public BlockPos getControllerPos() {
         return controllerPos;
     }
+    /**
+     * @return the blueprint this pattern was loaded from, or {@code null} for patterns built in code
+     */
+    @Nullable
+    public ResourceLocation getBlueprintId() {
+        return blueprintId;
+    }
 }
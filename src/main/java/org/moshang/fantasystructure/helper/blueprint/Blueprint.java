@@ -7,28 +7,62 @@ import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraftforge.fml.ModList;
 import org.moshang.fantasystructure.data.BlockInfo;
+import org.moshang.fantasystructure.helper.CompiledPattern;
 import org.moshang.fantasystructure.helper.StructurePattern;
+import org.moshang.fantasystructure.data.blueprint.PaletteVoxels;
 import org.moshang.fantasystructure.data.blueprint.StateCache;
 import org.slf4j.Logger;
 
-import java.io.*;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class Blueprint {
+    public static final int FORMAT_VERSION = 3;
+    public static final int SECTION_SIZE = 16;
+    public static final int MAX_TYPE_COUNT = 0xFFFF;
+    /** Run type indices in the voxel stream are u16 instead of u8. */
+    public static final int FLAG_WIDE_INDICES = 0x01;
+    /**
+     * Type table entries are a block registry name followed by one value index per
+     * property instead of a {@link BlockState#toString()} string.
+     */
+    public static final int FLAG_REGISTRY_PALETTE = 0x02;
+    /**
+     * The first registry palette entry of each block also lists its property names and
+     * their value names, and value indices refer to those lists. Since format 3.
+     */
+    public static final int FLAG_NAMED_PROPERTIES = 0x04;
+    private static final int PARALLEL_SECTION_THRESHOLD = 8;
+    private static final long PATTERN_ENTRY_BYTES = 88;
+
     private final ResourceLocation id;
     private final String name;
     private final int sizeX, sizeY, sizeZ;
     private final BlockPos controllerOffset;
     private final List<String> requiredMods;
 
+    private volatile PaletteVoxels voxelCache;
     private volatile Map<BlockPos, BlockInfo> patternCache;
+    private volatile CompiledPattern compiledCache;
+    private volatile StructurePattern structurePattern;
     private volatile BlockState[] blockTypeTable;
+    private volatile MappedByteBuffer voxelData;
     private Path binaryPath;
+    private int version;
+    private int flags;
+    private int dataOffset;
+    private long contentHash;
 
+    private volatile boolean released = false;
     private volatile boolean loadingFailed = false;
     private volatile String failureReason;
 
@@ -46,80 +80,53 @@ public class Blueprint {
     }
 
     public static Blueprint fromBinary(ResourceLocation id, Path file) throws IOException, BlueprintLoadException {
-        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r");
-            FileChannel channel = raf.getChannel()) {
-            ByteBuffer header = ByteBuffer.allocate(128);
-            header.order(ByteOrder.LITTLE_ENDIAN);
-            channel.read(header);
-            header.flip();
-
-            byte[] magic = new byte[4];
-            header.get(magic);
-            if(!"FSPB".equals(new String(magic))) {
-                throw new BlueprintLoadException("Invalid blueprint format");
-            }
-
-            int version = header.getShort();
-            int sizeX = header.getShort() & 0xFFFF;
-            int sizeY = header.getShort() & 0xFFFF;
-            int sizeZ = header.getShort() & 0xFFFF;
-            int dataOffset = header.getInt();
-            int typeCount = header.getShort() & 0xFFFF;
-            byte flags = header.get();
-            byte dependencyCount = header.get();
-            int controllerX = header.getShort() & 0xFFFF;
-            int controllerY = header.getShort() & 0xFFFF;
-            int controllerZ = header.getShort() & 0xFFFF;
-            BlockPos controllerOffset = new BlockPos(controllerX, controllerY, controllerZ);
-
-            List<String> dependencies = new ArrayList<>();
-            for(int i = 0; i < dependencyCount; i++) {
-                if(header.remaining() < 1) break;
-                int modIdLen = header.get() & 0xFF;
-                byte[] modId = new byte[modIdLen];
-                header.get(modId);
-                dependencies.add(new String(modId));
-            }
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return fromHeader(id, file, BlueprintHeader.read(channel));
+        } catch (Exception e) {
+            if(e instanceof BlueprintLoadException) throw e;
+            throw new BlueprintLoadException("Failed to load blueprint:" + e.getMessage(), e);
+        }
+    }
 
-            List<String> missingMods = new ArrayList<>();
-            for(String modId : dependencies) {
-                if(!ModList.get().isLoaded(modId)) {
-                    missingMods.add(modId);
-                    LOGGER.warn("missing mod: {}", modId);
-                }
-            }
-            if(!missingMods.isEmpty()) {
-                throw new BlueprintLoadException("Invalid blueprint format");
+    /**
+     * Builds a header-only blueprint from an already read header, without opening the file.
+     */
+    public static Blueprint fromHeader(ResourceLocation id, Path file, BlueprintHeader header) throws BlueprintLoadException {
+        List<String> missingMods = new ArrayList<>();
+        for(String modId : header.dependencies()) {
+            if(!ModList.get().isLoaded(modId)) {
+                missingMods.add(modId);
+                LOGGER.warn("missing mod: {}", modId);
             }
+        }
+        if(!missingMods.isEmpty()) {
+            throw new BlueprintLoadException("Invalid blueprint format");
+        }
 
-            channel.position(128);
-            BlockState[] typeTable = loadStateTable(channel, typeCount);
+        BlockState[] typeTable = loadStateTable(ByteBuffer.wrap(header.typeTable()), header.typeCount(),
+                (header.flags() & FLAG_REGISTRY_PALETTE) != 0, (header.flags() & FLAG_NAMED_PROPERTIES) != 0);
 
-            Blueprint bp = new Blueprint(
-                    id, file.getFileName().toString().replace(".fspb", ""),
-                    sizeX, sizeY, sizeZ, controllerOffset, dependencies
-            );
-            bp.blockTypeTable = typeTable;
-            bp.binaryPath = file;
+        Blueprint bp = new Blueprint(
+                id, file.getFileName().toString().replace(".fspb", ""),
+                header.sizeX(), header.sizeY(), header.sizeZ(), header.controllerOffset(), header.dependencies()
+        );
+        bp.blockTypeTable = typeTable;
+        bp.binaryPath = file;
+        bp.version = header.version();
+        bp.flags = header.flags();
+        bp.dataOffset = header.dataOffset();
 
-            return bp;
-        } catch (Exception e) {
-            if(e instanceof BlueprintLoadException) throw e;
-            throw new BlueprintLoadException("Failed to load blueprint:" + e.getMessage(), e);
-        }
+        return bp;
     }
 
-    private static BlockState[] loadStateTable(FileChannel channel, int typeCount) throws IOException, BlueprintLoadException {
-        if(typeCount <= 0 || typeCount > 255)
+    private static BlockState[] loadStateTable(ByteBuffer typeBuffer, int typeCount, boolean registryPalette,
+                                               boolean namedProperties) throws BlueprintLoadException {
+        if(typeCount <= 0 || typeCount > MAX_TYPE_COUNT)
             throw new BlueprintLoadException("Invalid blueprint typeCount: " + typeCount);
 
-        ByteBuffer typeBuffer = ByteBuffer.allocate(typeCount * 64);
-        typeBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        channel.read(typeBuffer);
-        typeBuffer.flip();
-
         BlockState[] stateTable = new BlockState[typeCount];
         List<String> missingBlocks = new ArrayList<>();
+        Map<String, PropertyNames> names = new HashMap<>();
 
         for(int i = 0; i < typeCount; i++) {
             if(typeBuffer.remaining() < 1)
@@ -131,8 +138,40 @@ public class Blueprint {
 
             byte[] stateBytes = new byte[stateLen];
             typeBuffer.get(stateBytes);
-            byte props = typeBuffer.get();
+            int props = typeBuffer.get() & 0xFF;
+
+            if(registryPalette) {
+                String blockId = new String(stateBytes, StandardCharsets.UTF_8);
+                PropertyNames propertyNames = null;
+                if(namedProperties) {
+                    propertyNames = names.get(blockId);
+                    if(propertyNames == null) {
+                        propertyNames = PropertyNames.read(typeBuffer, props);
+                        names.put(blockId, propertyNames);
+                    }
+                }
+                if(typeBuffer.remaining() < props)
+                    throw new BlueprintLoadException("Type table entry truncated");
+                int[] valueIndices = new int[props];
+                for(int p = 0; p < props; p++) {
+                    valueIndices[p] = typeBuffer.get() & 0xFF;
+                }
+
+                StateCache.BlockPropertyIndex index = StateCache.forBlockId(blockId);
+                BlockState blockState = index == null ? null : propertyNames == null
+                        ? index.resolve(valueIndices)
+                        : index.resolve(propertyNames.properties(), propertyNames.values(), valueIndices);
+                if(blockState == null) {
+                    missingBlocks.add(blockId);
+                    continue;
+                }
+                stateTable[i] = blockState;
+                continue;
+            }
 
+            if(typeBuffer.remaining() < props)
+                throw new BlueprintLoadException("Type table entry truncated");
+            typeBuffer.position(typeBuffer.position() + props);
             String blockStateString = new String(stateBytes);
             BlockState blockState = StateCache.parse(blockStateString);
 
@@ -154,59 +193,208 @@ public class Blueprint {
         return stateTable;
     }
 
-    public Map<BlockPos, BlockInfo> getPattern() {
+    public PaletteVoxels getVoxels() {
         if (loadingFailed) {
             throw new IllegalStateException("Blueprint loading failed: " + failureReason);
         }
 
-        if(patternCache == null) {
-            synchronized (this) {
-                if(patternCache == null) {
-                    try {
-                        patternCache = loadPatternInternal();
-                    } catch (Exception e) {
-                        loadingFailed = true;
-                        failureReason = e.getMessage();
-                        throw new RuntimeException("Failed to load pattern" + e.getMessage(), e);
-                    }
-                }
+        PaletteVoxels voxels = voxelCache;
+        if(voxels != null) return voxels;
+
+        synchronized (this) {
+            voxels = voxelCache;
+            if(voxels != null) return voxels;
+            try {
+                voxels = loadVoxelsInternal();
+                voxelCache = voxels;
+            } catch (Exception e) {
+                loadingFailed = true;
+                failureReason = e.getMessage();
+                throw new RuntimeException("Failed to load pattern" + e.getMessage(), e);
             }
         }
 
-        return patternCache;
+        BlueprintManager.recordPatternDecoded(this);
+        return voxels;
     }
 
+    /**
+     * Compatibility view of {@link #getVoxels()} keyed by controller-relative position.
+     * Built on first use only, prefer {@link PaletteVoxels#forEach} for iteration.
+     */
+    public Map<BlockPos, BlockInfo> getPattern() {
+        Map<BlockPos, BlockInfo> pattern = patternCache;
+        if(pattern != null) return pattern;
+
+        PaletteVoxels voxels = getVoxels();
+        synchronized (this) {
+            pattern = patternCache;
+            if(pattern != null) return pattern;
+            pattern = voxels.toMap();
+            patternCache = pattern;
+        }
+        BlueprintManager.recordPatternGrown(this);
+        return pattern;
+    }
+
+    public CompiledPattern getCompiled() {
+        CompiledPattern compiled = compiledCache;
+        if(compiled != null) return compiled;
+
+        PaletteVoxels voxels = getVoxels();
+        synchronized (this) {
+            compiled = compiledCache;
+            if(compiled != null) return compiled;
+            compiled = CompiledPattern.compile(voxels, () -> BlueprintManager.recordPatternGrown(this));
+            compiledCache = compiled;
+        }
+        BlueprintManager.recordPatternGrown(this);
+        return compiled;
+    }
+
+    /**
+     * The pattern is created once and shared by every controller of this blueprint,
+     * it only holds suppliers and never pins the decoded data.
+     */
     public StructurePattern toStructurePattern() {
-        return new StructurePattern(Collections.unmodifiableMap(getPattern()), controllerOffset);
+        StructurePattern pattern = structurePattern;
+        if(pattern == null) {
+            pattern = new StructurePattern(id, this::getVoxels, () -> Collections.unmodifiableMap(getPattern()),
+                    this::getCompiled, this::recordUse, controllerOffset);
+            structurePattern = pattern;
+        }
+        return pattern;
     }
 
-    private Map<BlockPos, BlockInfo> loadPatternInternal() throws IOException {
+    /**
+     * Counts a cache hit if the pattern is decoded, a decode counts as the miss itself.
+     */
+    private void recordUse() {
+        if(voxelCache != null) {
+            BlueprintManager.recordPatternHit(this);
+        }
+    }
+
+    /**
+     * Approximate heap held by the decoded pattern, zero when only the header is loaded.
+     */
+    public long getDecodedBytes() {
+        long bytes = 0;
+        PaletteVoxels voxels = voxelCache;
+        if(voxels != null) {
+            bytes += voxels.getStorageBytes() + voxels.getPaletteSize() * 32L;
+        }
+        Map<BlockPos, BlockInfo> pattern = patternCache;
+        if(pattern != null) {
+            bytes += pattern.size() * PATTERN_ENTRY_BYTES;
+        }
+        CompiledPattern compiled = compiledCache;
+        if(compiled != null) {
+            bytes += compiled.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the decoded pattern and keeps the header, type table and file mapping,
+     * so the next access decodes again without reopening the file.
+     */
+    public synchronized void evictPattern() {
+        voxelCache = null;
+        patternCache = null;
+        compiledCache = null;
+    }
+
+    /**
+     * Drops the decoded pattern and unmaps the file so it can be replaced. The
+     * blueprint cannot decode again afterwards, the new file is registered as a
+     * new blueprint.
+     */
+    synchronized void release() {
+        released = true;
+        evictPattern();
+        MappedByteBuffer mapped = voxelData;
+        voxelData = null;
+        if(mapped != null) {
+            unmap(mapped);
+        }
+    }
+
+    /**
+     * Unmaps right away where the runtime allows it. Decoding only reads the mapping
+     * while holding the blueprint lock, so nothing can still be reading it here.
+     * Otherwise the mapping goes once the buffer is collected.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Could not unmap blueprint data, leaving it to the garbage collector", e);
+        }
+    }
+
+    Path getBinaryPath() {
+        return binaryPath;
+    }
+
+    public boolean isPatternLoaded() {
+        return voxelCache != null;
+    }
+
+    private PaletteVoxels loadVoxelsInternal() throws IOException {
         if(blockTypeTable == null)
             throw new IllegalStateException("Type table not loaded");
 
-        try(RandomAccessFile raf = new RandomAccessFile(binaryPath.toFile(), "r");
-            FileChannel channel = raf.getChannel()) {
-            ByteBuffer header = ByteBuffer.allocate(16);
-            header.order(ByteOrder.LITTLE_ENDIAN);
-            channel.read(header);
-            header.position(12);
-            int dataOffset = header.getInt();
-
-            channel.position(dataOffset);
-            long voxelDataSize = channel.size() - dataOffset;
-            ByteBuffer voxelData = ByteBuffer.allocate((int) Math.min(voxelDataSize, Integer.MAX_VALUE));
-            channel.read(voxelData);
-            voxelData.flip();
-
-            Map<BlockPos, BlockInfo> pattern = new HashMap<>();
-            decodeRLEToPattern(voxelData, pattern);
-            return pattern;
-        } catch (Exception e) {
-            throw e;
+        BlockInfo[] palette = new BlockInfo[blockTypeTable.length];
+        for(int i = 1; i < blockTypeTable.length; i++) {
+            BlockState state = blockTypeTable[i];
+            if(state != null && !state.isAir()) {
+                palette[i] = new BlockInfo(state);
+            }
         }
+
+        PaletteVoxels voxels = new PaletteVoxels(sizeX, sizeY, sizeZ, controllerOffset, palette);
+        if(version >= 2) {
+            decodeSectionsToVoxels(mapVoxelData(), voxels);
+        } else {
+            decodeRLEToVoxels(mapVoxelData(), voxels);
+        }
+        voxels.markChanged();
+        return voxels;
     }
 
-    private void decodeRLEToPattern(ByteBuffer data, Map<BlockPos, BlockInfo> pattern) {
+    /**
+     * Maps the voxel region of the blueprint file once and keeps the mapping,
+     * so that decoding again after the pattern was dropped neither reopens
+     * the file nor copies the payload onto the heap.
+     */
+    private MappedByteBuffer mapVoxelData() throws IOException {
+        MappedByteBuffer mapped = voxelData;
+        if(mapped != null) return mapped;
+
+        synchronized (this) {
+            if(released)
+                throw new IOException("Blueprint file was replaced: " + binaryPath);
+            if(voxelData == null) {
+                try(FileChannel channel = FileChannel.open(binaryPath, StandardOpenOption.READ)) {
+                    long voxelDataSize = channel.size() - dataOffset;
+                    if(voxelDataSize < 0)
+                        throw new BlueprintLoadException("Invalid blueprint dataOffset: " + dataOffset);
+
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset,
+                            Math.min(voxelDataSize, Integer.MAX_VALUE));
+                    mapped.order(ByteOrder.LITTLE_ENDIAN);
+                    voxelData = mapped;
+                }
+            }
+            return voxelData;
+        }
+    }
+
+    private void decodeRLEToVoxels(ByteBuffer data, PaletteVoxels voxels) {
         int voxelIndex = 0;
 
         for(int y = 0; y < sizeY && voxelIndex < data.limit(); ++y) {
@@ -224,16 +412,13 @@ public class Blueprint {
                         typeIdx = b & 0xFF;
                     }
 
-                    if(typeIdx > 0 && typeIdx <= blockTypeTable.length) {
-                        BlockState state = blockTypeTable[typeIdx];
-                        if(state != null && !state.is(Blocks.AIR)) {
-                            for(int i = 0; i < count; ++i) {
-                                int curX = x + i;
-                                if(curX >= sizeX) break;
+                    if(typeIdx > 0 && typeIdx < blockTypeTable.length
+                            && voxels.getPaletteEntry(typeIdx) != null) {
+                        for(int i = 0; i < count; ++i) {
+                            int curX = x + i;
+                            if(curX >= sizeX) break;
 
-                                BlockPos pos = new BlockPos(curX, y, z).subtract(controllerOffset);
-                                pattern.put(pos, new BlockInfo(state));
-                            }
+                            voxels.set(curX, y, z, typeIdx);
                         }
                     }
 
@@ -243,6 +428,141 @@ public class Blueprint {
         }
     }
 
+    /**
+     * Version 2 data region: an int table of {@code sectionCount + 1} offsets relative
+     * to dataOffset, followed by one RLE stream per 16x16x16 section. Sections are
+     * ordered y, z, x and each stream covers the section's cells in y, z, x order.
+     */
+    private void decodeSectionsToVoxels(ByteBuffer data, PaletteVoxels voxels) {
+        int sectionsX = sectionCount(sizeX);
+        int sectionsY = sectionCount(sizeY);
+        int sectionsZ = sectionCount(sizeZ);
+        int sectionCount = sectionsX * sectionsY * sectionsZ;
+        int tableSize = (sectionCount + 1) * 4;
+        if(data.limit() < tableSize)
+            throw new BlueprintLoadException("Section table truncated");
+
+        IntStream sections = IntStream.range(0, sectionCount);
+        if(sectionCount >= PARALLEL_SECTION_THRESHOLD) {
+            sections = sections.parallel();
+        }
+        sections.forEach(i -> {
+            int start = data.getInt(i * 4);
+            int end = data.getInt(i * 4 + 4);
+            if(start < tableSize || end < start || end > data.limit())
+                throw new BlueprintLoadException("Invalid section offset: " + i);
+
+            int sx = i % sectionsX;
+            int sz = (i / sectionsX) % sectionsZ;
+            int sy = i / (sectionsX * sectionsZ);
+            int originX = sx * SECTION_SIZE, originY = sy * SECTION_SIZE, originZ = sz * SECTION_SIZE;
+            decodeSection(data, start, end, (flags & FLAG_WIDE_INDICES) != 0,
+                    Math.min(SECTION_SIZE, sizeX - originX),
+                    Math.min(SECTION_SIZE, sizeY - originY),
+                    Math.min(SECTION_SIZE, sizeZ - originZ),
+                    (x, y, z, typeIdx) -> {
+                        if(typeIdx < blockTypeTable.length && voxels.getPaletteEntry(typeIdx) != null) {
+                            voxels.set(originX + x, originY + y, originZ + z, typeIdx);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Decodes the RLE stream of one section of {@code lenX * lenY * lenZ} cells, see
+     * {@code BlueprintEditor#encodeSection}. Hands every non-empty cell to {@code consumer}
+     * with coordinates relative to the section origin; a truncated stream ends early.
+     */
+    static void decodeSection(ByteBuffer data, int start, int end, boolean wide,
+                              int lenX, int lenY, int lenZ, SectionCellConsumer consumer) {
+        int cells = lenX * lenY * lenZ;
+        int cell = 0;
+        int p = start;
+        while(cell < cells && p < end) {
+            byte b = data.get(p++);
+            if(b == 0) {
+                cell++;
+                continue;
+            }
+
+            int typeIdx, count = 1;
+            if(b < 0) {
+                count = -b;
+                if(wide) {
+                    if(p + 1 >= end) return;
+                    typeIdx = data.getShort(p) & 0xFFFF;
+                    p += 2;
+                } else {
+                    if(p >= end) return;
+                    typeIdx = data.get(p++) & 0xFF;
+                }
+            } else {
+                typeIdx = b & 0xFF;
+            }
+
+            if(typeIdx > 0) {
+                for(int c = cell, last = Math.min(cell + count, cells); c < last; c++) {
+                    consumer.accept(c % lenX, c / (lenX * lenZ), (c / lenX) % lenZ, typeIdx);
+                }
+            }
+            cell += count;
+        }
+    }
+
+    @FunctionalInterface
+    interface SectionCellConsumer {
+        void accept(int x, int y, int z, int typeIdx);
+    }
+
+    /**
+     * Property names of one block and the value names of each, as written before the
+     * first palette entry of that block.
+     */
+    private record PropertyNames(String[] properties, String[][] values) {
+        static PropertyNames read(ByteBuffer buffer, int count) throws BlueprintLoadException {
+            String[] properties = new String[count];
+            String[][] values = new String[count][];
+            for(int p = 0; p < count; p++) {
+                properties[p] = readName(buffer);
+                if(buffer.remaining() < 1)
+                    throw new BlueprintLoadException("Type table entry truncated");
+                values[p] = new String[buffer.get() & 0xFF];
+                for(int v = 0; v < values[p].length; v++) {
+                    values[p][v] = readName(buffer);
+                }
+            }
+            return new PropertyNames(properties, values);
+        }
+
+        private static String readName(ByteBuffer buffer) throws BlueprintLoadException {
+            if(buffer.remaining() < 1)
+                throw new BlueprintLoadException("Type table entry truncated");
+            int length = buffer.get() & 0xFF;
+            if(buffer.remaining() < length)
+                throw new BlueprintLoadException("Type table entry truncated");
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static int sectionCount(int size) {
+        return (size + SECTION_SIZE - 1) / SECTION_SIZE;
+    }
+
+    public ResourceLocation getId() {
+        return id;
+    }
+    /**
+     * @return the checksum of the blueprint file, changes whenever the file is re-exported
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+    void setContentHash(long contentHash) {
+        this.contentHash = contentHash;
+    }
+
     public static class BlueprintLoadException extends RuntimeException {
         public BlueprintLoadException(String message) {
             super(message);
@@ -1,26 +1,39 @@
 package org.moshang.fantasystructure.helper.blueprint;
 
 import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
 import org.moshang.fantasystructure.Config;
+import net.minecraftforge.registries.ForgeRegistries;
 import org.moshang.fantasystructure.blockentity.BlockEntityController;
+import org.moshang.fantasystructure.data.blueprint.StateCache;
 import org.slf4j.Logger;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BlueprintEditor {
     private static ExecutorService EXPORTING_THREAD_POOL;
+    private static final int PROGRESS_INTERVAL = 64;
 
     private static final Logger LOGGER = LogUtils.getLogger();
 
@@ -32,88 +45,273 @@ public class BlueprintEditor {
     }
 
     public static void saveBinary(Path outputFile, int sizeX, int sizeY, int sizeZ,
-                                  byte[][][] voxels, List<String> blockStateTable,
+                                  short[][][] voxels, List<BlockState> blockStateTable,
                                   Set<String> modDependencies, BlockPos controllerOffset) throws IOException {
-        try(FileOutputStream fos = new FileOutputStream(outputFile.toFile());
-            FileChannel channel = fos.getChannel()) {
-            ByteBuffer buffer = ByteBuffer.allocate(1024*1024);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-            buffer.put("FSPB".getBytes());
-            buffer.putShort((short) 1);
-            buffer.putShort((short) sizeX);
-            buffer.putShort((short) sizeY);
-            buffer.putShort((short) sizeZ);
-            buffer.putInt(0);
-            buffer.putShort((short) blockStateTable.size());
-            buffer.put((byte) 0);
-            buffer.put((byte) modDependencies.size());
-            buffer.putShort((short) controllerOffset.getX());
-            buffer.putShort((short) controllerOffset.getY());
-            buffer.putShort((short) controllerOffset.getZ());
+        saveBinary(outputFile, sizeX, sizeY, sizeZ, voxels, blockStateTable,
+                modDependencies, controllerOffset, ExportProgressListener.NONE);
+    }
+
+    public static void saveBinary(Path outputFile, int sizeX, int sizeY, int sizeZ,
+                                  short[][][] voxels, List<BlockState> blockStateTable,
+                                  Set<String> modDependencies, BlockPos controllerOffset,
+                                  ExportProgressListener listener) throws IOException {
+        if(blockStateTable.size() > Blueprint.MAX_TYPE_COUNT) {
+            throw new IOException("Too many block states: " + blockStateTable.size());
+        }
+        boolean wide = blockStateTable.size() > 0x100;
+
+        // written beside the target and moved over it; a blueprint registered from the old file
+        // is released first, a mapped file cannot be replaced on Windows
+        Path tempFile = outputFile.resolveSibling(outputFile.getFileName() + ".tmp");
+        Blueprint previous = null;
+        try {
+            writeBinary(tempFile, sizeX, sizeY, sizeZ, voxels, blockStateTable, modDependencies, controllerOffset,
+                    wide, listener);
+            previous = BlueprintManager.unregister(outputFile);
+            Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            if(previous != null) {
+                BlueprintManager.register(outputFile);
+            }
+            throw e;
+        }
+    }
+
+    private static void writeBinary(Path outputFile, int sizeX, int sizeY, int sizeZ,
+                                    short[][][] voxels, List<BlockState> blockStateTable,
+                                    Set<String> modDependencies, BlockPos controllerOffset, boolean wide,
+                                    ExportProgressListener listener) throws IOException {
+        try(FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BlueprintOutput out = new BlueprintOutput(channel);
+
+            out.put("FSPB".getBytes());
+            out.putShort((short) Blueprint.FORMAT_VERSION);
+            out.putShort((short) sizeX);
+            out.putShort((short) sizeY);
+            out.putShort((short) sizeZ);
+            out.putInt(0);
+            out.putShort((short) blockStateTable.size());
+            out.put((byte) (Blueprint.FLAG_REGISTRY_PALETTE | Blueprint.FLAG_NAMED_PROPERTIES
+                    | (wide ? Blueprint.FLAG_WIDE_INDICES : 0)));
+            out.put((byte) modDependencies.size());
+            out.putShort((short) controllerOffset.getX());
+            out.putShort((short) controllerOffset.getY());
+            out.putShort((short) controllerOffset.getZ());
 
             for(String modId : modDependencies) {
                 byte[] modIdBytes = modId.getBytes();
-                buffer.put((byte) modIdBytes.length);
-                buffer.put(modIdBytes);
+                out.put((byte) modIdBytes.length);
+                out.put(modIdBytes);
+            }
+            if(out.position() > 128) {
+                throw new IOException("Too many mod dependencies for the blueprint header");
             }
+            out.pad(128);
 
-            while(buffer.position() < 128) {
-                buffer.put((byte) 0);
+            Set<Block> described = new HashSet<>();
+            for(BlockState blockState : blockStateTable) {
+                StateCache.BlockPropertyIndex index = StateCache.forBlock(blockState.getBlock());
+                if(index.getBlockId() == null) {
+                    throw new IOException("Block is not registered: " + blockState);
+                }
+                byte[] idBytes = index.getBlockId().getBytes(StandardCharsets.UTF_8);
+                int[] valueIndices = index.encode(blockState);
+                if(idBytes.length > 0xFF || valueIndices.length > 0xFF) {
+                    throw new IOException("Block state cannot be stored: " + blockState);
+                }
+                out.put((byte) idBytes.length);
+                out.put(idBytes);
+                out.put((byte) valueIndices.length);
+                if(described.add(blockState.getBlock())) {
+                    putPropertyNames(out, index, blockState);
+                }
+                for(int valueIndex : valueIndices) {
+                    if(valueIndex < 0 || valueIndex > 0xFF) {
+                        throw new IOException("Block state cannot be stored: " + blockState);
+                    }
+                    out.put((byte) valueIndex);
+                }
             }
 
-            List<String> platte = blockStateTable;
-            for(String blockState : platte) {
-                byte[] stateBytes = blockState.getBytes();
-                buffer.put((byte) stateBytes.length);
-                buffer.put(stateBytes);
-                buffer.put((byte) 0);
+            long dataOffset = out.position();
+            int sectionsX = Blueprint.sectionCount(sizeX);
+            int sectionsY = Blueprint.sectionCount(sizeY);
+            int sectionsZ = Blueprint.sectionCount(sizeZ);
+            int sectionCount = sectionsX * sectionsY * sectionsZ;
+            int[] sectionOffsets = new int[sectionCount + 1];
+            out.pad(dataOffset + sectionOffsets.length * 4L);
+
+            int section = 0;
+            for(int sy = 0; sy < sectionsY; sy++) {
+                for(int sz = 0; sz < sectionsZ; sz++) {
+                    for(int sx = 0; sx < sectionsX; sx++) {
+                        sectionOffsets[section++] = (int) (out.position() - dataOffset);
+                        encodeSection(out, voxels, wide, sizeX, sizeY, sizeZ,
+                                sx * Blueprint.SECTION_SIZE, sy * Blueprint.SECTION_SIZE, sz * Blueprint.SECTION_SIZE);
+                        if((section & (PROGRESS_INTERVAL - 1)) == 0) {
+                            listener.onProgress(ExportProgressListener.Stage.WRITE, section, sectionCount);
+                        }
+                    }
+                }
+            }
+            sectionOffsets[sectionCount] = (int) (out.position() - dataOffset);
+            if(out.position() > Integer.MAX_VALUE) {
+                throw new IOException("Blueprint too large: " + out.position() + " bytes");
             }
 
-            int dataOffset = buffer.position();
-            buffer.putInt(12, dataOffset);
+            out.flush();
+            out.patchInt(12, (int) dataOffset);
+            out.patchInts(dataOffset, sectionOffsets);
+            listener.onProgress(ExportProgressListener.Stage.WRITE, sectionCount, sectionCount);
+        }
+    }
+
+    /**
+     * Writes the property names of a block and the value names of each property,
+     * so value indices can be resolved by name after a mod changed the block.
+     */
+    private static void putPropertyNames(BlueprintOutput out, StateCache.BlockPropertyIndex index,
+                                         BlockState blockState) throws IOException {
+        String[] properties = index.getPropertyNames();
+        String[][] values = index.getValueNames();
+        for(int p = 0; p < properties.length; p++) {
+            if(values[p].length > 0xFF) {
+                throw new IOException("Block state cannot be stored: " + blockState);
+            }
+            putName(out, properties[p], blockState);
+            out.put((byte) values[p].length);
+            for(String value : values[p]) {
+                putName(out, value, blockState);
+            }
+        }
+    }
 
-            for(int y = 0; y < sizeY; y++) {
-                for(int z = 0; z < sizeZ; z++) {
-                    int x = 0;
-                    while (x < sizeX) {
-                        byte current = voxels[y][z][x];
-                        int runLength = 1;
+    private static void putName(BlueprintOutput out, String name, BlockState blockState) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xFF) {
+            throw new IOException("Block state cannot be stored: " + blockState);
+        }
+        out.put((byte) bytes.length);
+        out.put(bytes);
+    }
 
-                        while (x + runLength < sizeX &&
-                                voxels[y][z][x + runLength] == current &&
-                                runLength < 127) {
-                            runLength++;
-                        }
+    /**
+     * Encodes one section as RLE tokens: {@code 0} is a single empty cell, a positive
+     * byte {@code t} is a single cell of type {@code t}, and a negative byte {@code -n}
+     * is followed by the type of a run of {@code n} cells.
+     */
+    static void encodeSection(BlueprintOutput out, short[][][] voxels, boolean wide,
+                                      int sizeX, int sizeY, int sizeZ,
+                                      int originX, int originY, int originZ) throws IOException {
+        int maxX = Math.min(originX + Blueprint.SECTION_SIZE, sizeX);
+        int maxY = Math.min(originY + Blueprint.SECTION_SIZE, sizeY);
+        int maxZ = Math.min(originZ + Blueprint.SECTION_SIZE, sizeZ);
 
-                        buffer.put((byte) -runLength);
-                        buffer.put(current);
-                        x += runLength;
+        short current = 0;
+        int runLength = 0;
+        for(int y = originY; y < maxY; y++) {
+            for(int z = originZ; z < maxZ; z++) {
+                for(int x = originX; x < maxX; x++) {
+                    short voxel = voxels[y][z][x];
+                    if(runLength > 0 && (voxel != current || runLength == 127)) {
+                        putRun(out, current, runLength, wide);
+                        runLength = 0;
                     }
+                    current = voxel;
+                    runLength++;
                 }
             }
-            buffer.flip();
-            channel.write(buffer);
+        }
+        if(runLength > 0) {
+            putRun(out, current, runLength, wide);
+        }
+    }
+
+    private static void putRun(BlueprintOutput out, short type, int runLength, boolean wide) throws IOException {
+        if(runLength == 1 && type >= 0 && type <= Byte.MAX_VALUE) {
+            out.put((byte) type);
+            return;
+        }
+
+        out.put((byte) -runLength);
+        if(wide) {
+            out.putShort(type);
+        } else {
+            out.put((byte) type);
         }
     }
 
     public static boolean exportRegionToBlueprint(Level level, BlockPos pos1, BlockPos pos2,
                                                String name, Path outputFile) throws IOException {
-        ExtractionInfo info = extractVoxels(level, pos1, pos2);
-        BlockPos minCorner = info.minCorner();
-        BlockPos controllerPos = info.controllerPos();
-        if(controllerPos == null) {
-            return false;
+        try {
+            return exportRegionToBlueprintAsync(level, pos1, pos2, name, outputFile, ExportProgressListener.NONE)
+                    .join().success();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof IOException ioException) throw ioException;
+            throw e;
+        }
+    }
+
+    /**
+     * Exports a region in stages: the chunk sections are snapshotted on the server
+     * thread, then extraction, dependency analysis, encoding and writing run on
+     * {@code EXPORTING_THREAD_POOL}. If called off the server thread, the snapshot
+     * is scheduled onto it.
+     */
+    public static CompletableFuture<ExportResult> exportRegionToBlueprintAsync(Level level, BlockPos pos1, BlockPos pos2,
+                                                                           String name, Path outputFile,
+                                                                           ExportProgressListener listener) {
+        MinecraftServer server = level.getServer();
+        CompletableFuture<RegionSnapshot> snapshot;
+        if(server != null && !server.isSameThread()) {
+            snapshot = CompletableFuture.supplyAsync(() -> snapshotRegion(level, pos1, pos2, listener), server);
+        } else {
+            try {
+                snapshot = CompletableFuture.completedFuture(snapshotRegion(level, pos1, pos2, listener));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
         }
 
-        BlockPos controllerOffset = controllerPos.subtract(minCorner);
-        Set<String> modDependencies = extractModDependencies(new HashSet<>(info.blockStateTable()));
-        saveBinary(
-                outputFile,
-                info.sizeX(), info.sizeY(), info.sizeZ(),
-                info.voxels(), info.blockStateTable(), modDependencies, controllerOffset
-        );
-        return true;
+        Executor executor = exportExecutor();
+        return snapshot.thenCompose(regionSnapshot -> {
+            if(regionSnapshot.controllerPos() == null) {
+                return CompletableFuture.completedFuture(
+                        ExportResult.failed(outputFile, "No controller found in region"));
+            }
+            return extractVoxelsAsync(regionSnapshot, executor, listener)
+                    .thenApplyAsync(info -> writeBlueprint(info, outputFile, listener), executor);
+        }).whenComplete((result, throwable) -> {
+            if(throwable != null) {
+                LOGGER.error("Failed to export blueprint {}", name, throwable);
+            } else {
+                listener.onProgress(ExportProgressListener.Stage.DONE, 1, 1);
+            }
+        });
+    }
+
+    private static ExportResult writeBlueprint(ExtractionInfo info, Path outputFile, ExportProgressListener listener) {
+        BlockPos controllerOffset = info.controllerPos().subtract(info.minCorner());
+        Set<String> modDependencies = extractModDependencies(info.blockStateTable());
+        try {
+            saveBinary(
+                    outputFile,
+                    info.sizeX(), info.sizeY(), info.sizeZ(),
+                    info.voxels(), info.blockStateTable(), modDependencies, controllerOffset, listener
+            );
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        ExportResult result = new ExportResult(true, outputFile, null, info.sizeX(), info.sizeY(), info.sizeZ(),
+                info.blockStateTable().size());
+        BlueprintManager.register(result.outputFile());
+        return result;
+    }
+
+    private static Executor exportExecutor() {
+        return EXPORTING_THREAD_POOL != null ? EXPORTING_THREAD_POOL : ForkJoinPool.commonPool();
     }
 
     /***
@@ -138,24 +336,25 @@ public class BlueprintEditor {
         }
     }
 
-    private static Set<String> extractModDependencies(Set<String> blockIds) {
+    private static Set<String> extractModDependencies(List<BlockState> blockStates) {
         Set<String> modIds = new HashSet<>();
-        for (String blockId : blockIds) {
-            if (blockId.contains(":")) {
-                blockId = blockId.substring(
-                        blockId.indexOf('{') + 1,
-                        blockId.indexOf('}')
-                );
-                String modId = blockId.split(":")[0];
-                if (!"minecraft".equals(modId)) {
-                    modIds.add(modId);
-                }
+        for (BlockState blockState : blockStates) {
+            ResourceLocation blockId = ForgeRegistries.BLOCKS.getKey(blockState.getBlock());
+            if (blockId != null && !"minecraft".equals(blockId.getNamespace())) {
+                modIds.add(blockId.getNamespace());
             }
         }
         return modIds;
     }
 
-    private static ExtractionInfo extractVoxels(Level level, BlockPos pos1, BlockPos pos2) {
+    /**
+     * Copies the block state containers of every chunk section touched by the region
+     * and locates the controller. This is the only part of an export that needs the
+     * server thread; everything else works on the returned snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    private static RegionSnapshot snapshotRegion(Level level, BlockPos pos1, BlockPos pos2,
+                                                 ExportProgressListener listener) {
         int minX = Math.min(pos1.getX(), pos2.getX());
         int minY = Math.min(pos1.getY(), pos2.getY());
         int minZ = Math.min(pos1.getZ(), pos2.getZ());
@@ -163,67 +362,195 @@ public class BlueprintEditor {
         int maxY = Math.max(pos1.getY(), pos2.getY()) + 1;
         int maxZ = Math.max(pos1.getZ(), pos2.getZ()) + 1;
 
-        int sizeX = maxX - minX;
-        int sizeY = maxY - minY;
-        int sizeZ = maxZ - minZ;
+        int minSX = SectionPos.blockToSectionCoord(minX);
+        int minSY = SectionPos.blockToSectionCoord(minY);
+        int minSZ = SectionPos.blockToSectionCoord(minZ);
+        int lenSX = SectionPos.blockToSectionCoord(maxX - 1) - minSX + 1;
+        int lenSY = SectionPos.blockToSectionCoord(maxY - 1) - minSY + 1;
+        int lenSZ = SectionPos.blockToSectionCoord(maxZ - 1) - minSZ + 1;
 
-        BlockPos minCorner = new BlockPos(minX, minY, minZ);
+        PalettedContainer<BlockState>[] sections = new PalettedContainer[lenSX * lenSY * lenSZ];
+        BlockPos controllerPos = null;
 
-        Map<String, Byte> blockIdToIndex = new LinkedHashMap<>();
-        byte nextIndex = 1;
+        for(int cz = minSZ; cz < minSZ + lenSZ; cz++) {
+            for(int cx = minSX; cx < minSX + lenSX; cx++) {
+                LevelChunk chunk = level.getChunk(cx, cz);
+                LevelChunkSection[] chunkSections = chunk.getSections();
+                for(int sy = minSY; sy < minSY + lenSY; sy++) {
+                    int sectionIndex = chunk.getSectionIndexFromSectionY(sy);
+                    if(sectionIndex < 0 || sectionIndex >= chunkSections.length) continue;
 
-        byte[][][] voxels = new byte[sizeY][sizeZ][sizeX];
+                    LevelChunkSection section = chunkSections[sectionIndex];
+                    if(section.hasOnlyAir()) continue;
+                    sections[((sy - minSY) * lenSZ + (cz - minSZ)) * lenSX + (cx - minSX)] =
+                            section.getStates().copy();
+                }
 
-        boolean hasController = false;
-        BlockPos controllerPos = null;
+                for(BlockEntity be : chunk.getBlockEntities().values()) {
+                    if(!(be instanceof BlockEntityController)) continue;
 
-        for(int y = 0; y < sizeY; y++) {
-            for(int z = 0; z < sizeZ; z++) {
-                for(int x = 0; x < sizeX; x++) {
-                    BlockPos worldPos = minCorner.offset(x, y, z);
-                    BlockState blockState = level.getBlockState(worldPos);
-                    BlockEntity be = level.getBlockEntity(worldPos);
-
-                    if(!hasController) {
-                        if(be instanceof BlockEntityController) {
-                            controllerPos = worldPos;
-                            hasController = true;
-                        }
+                    BlockPos pos = be.getBlockPos();
+                    if(pos.getX() < minX || pos.getX() >= maxX
+                            || pos.getY() < minY || pos.getY() >= maxY
+                            || pos.getZ() < minZ || pos.getZ() >= maxZ) continue;
+                    if(controllerPos == null || compareScanOrder(pos, controllerPos) < 0) {
+                        controllerPos = pos;
                     }
+                }
+            }
+        }
 
-                    if(blockState.isAir()) {
-                        voxels[y][z][x] = 0;
-                        continue;
-                    }
-                    String blockStateStr = blockState.toString();
-                    Byte index = blockIdToIndex.get(blockStateStr);
+        listener.onProgress(ExportProgressListener.Stage.SNAPSHOT, sections.length, sections.length);
+        return new RegionSnapshot(sections, minSX, minSY, minSZ, lenSX, lenSY, lenSZ,
+                new BlockPos(minX, minY, minZ), controllerPos, maxX - minX, maxY - minY, maxZ - minZ);
+    }
+
+    private static int compareScanOrder(BlockPos a, BlockPos b) {
+        if(a.getY() != b.getY()) return Integer.compare(a.getY(), b.getY());
+        if(a.getZ() != b.getZ()) return Integer.compare(a.getZ(), b.getZ());
+        return Integer.compare(a.getX(), b.getX());
+    }
+
+    /**
+     * Maps every snapshot section to a local palette on the given executor,
+     * merges the local palettes into the global one and finally rewrites the local
+     * indices to global ones, again one task per section. Nothing here blocks
+     * a pool thread on another task.
+     */
+    private static CompletableFuture<ExtractionInfo> extractVoxelsAsync(RegionSnapshot snapshot, Executor executor,
+                                                                        ExportProgressListener listener) {
+        short[][][] voxels = new short[snapshot.sizeY()][snapshot.sizeZ()][snapshot.sizeX()];
+
+        int sectionCount = snapshot.sections().length;
+        AtomicInteger mapped = new AtomicInteger();
+        List<CompletableFuture<List<BlockState>>> localPalettes = new ArrayList<>(sectionCount);
+        for(int i = 0; i < sectionCount; i++) {
+            int section = i;
+            localPalettes.add(CompletableFuture.supplyAsync(() -> {
+                List<BlockState> localPalette = mapSection(snapshot, section, voxels);
+                int done = mapped.incrementAndGet();
+                if((done & (PROGRESS_INTERVAL - 1)) == 0 || done == sectionCount) {
+                    listener.onProgress(ExportProgressListener.Stage.EXTRACT, done, sectionCount);
+                }
+                return localPalette;
+            }, executor));
+        }
+
+        return CompletableFuture.allOf(localPalettes.toArray(CompletableFuture[]::new)).thenComposeAsync(ignored -> {
+            Map<BlockState, Integer> globalIndex = new LinkedHashMap<>();
+            int[][] remaps = new int[sectionCount][];
+            for(int i = 0; i < sectionCount; i++) {
+                List<BlockState> localPalette = localPalettes.get(i).join();
+                int[] remap = new int[localPalette.size() + 1];
+                for(int local = 0; local < localPalette.size(); local++) {
+                    Integer index = globalIndex.get(localPalette.get(local));
                     if(index == null) {
-                        index = nextIndex++;
-                        if(index == 0) {
-                            index = nextIndex++;
+                        index = globalIndex.size() + 1;
+                        if(index >= Blueprint.MAX_TYPE_COUNT) {
+                            throw new IllegalStateException("Region contains more than "
+                                    + (Blueprint.MAX_TYPE_COUNT - 1) + " block states");
                         }
-                        blockIdToIndex.put(blockStateStr, index);
+                        globalIndex.put(localPalette.get(local), index);
                     }
-                    voxels[y][z][x] = index;
+                    remap[local + 1] = index;
                 }
+                remaps[i] = remap;
             }
-        }
 
-        List<String> blockStateTable = new ArrayList<>(blockIdToIndex.size() + 1);
-        blockStateTable.add(0, "Block{minecraft:air}");
-        blockIdToIndex.entrySet().stream()
-                .sorted(Map.Entry.comparingByValue())
-                .forEachOrdered(entry -> {
-                    while(blockStateTable.size() <= entry.getValue()) {
-                        blockStateTable.add(null);
+            List<CompletableFuture<Void>> remapTasks = new ArrayList<>(sectionCount);
+            for(int i = 0; i < sectionCount; i++) {
+                int section = i;
+                if(remaps[i].length > 1) {
+                    remapTasks.add(CompletableFuture.runAsync(
+                            () -> remapSection(snapshot, section, voxels, remaps[section]), executor
+                    ));
+                }
+            }
+
+            return CompletableFuture.allOf(remapTasks.toArray(CompletableFuture[]::new)).thenApply(done -> {
+                List<BlockState> blockStateTable = new ArrayList<>(globalIndex.size() + 1);
+                blockStateTable.add(Blocks.AIR.defaultBlockState());
+                blockStateTable.addAll(globalIndex.keySet());
+
+                return new ExtractionInfo(voxels, blockStateTable, snapshot.minCorner(), snapshot.controllerPos(),
+                        snapshot.sizeX(), snapshot.sizeY(), snapshot.sizeZ());
+            });
+        }, executor);
+    }
+
+    private static List<BlockState> mapSection(RegionSnapshot snapshot, int section, short[][][] voxels) {
+        PalettedContainer<BlockState> states = snapshot.sections()[section];
+        if(states == null) return List.of();
+
+        List<BlockState> localPalette = new ArrayList<>();
+        Reference2IntOpenHashMap<BlockState> localIndex = new Reference2IntOpenHashMap<>();
+        BlockState lastState = null;
+        int lastIndex = 0;
+
+        int[] bounds = snapshot.sectionBounds(section);
+        BlockPos minCorner = snapshot.minCorner();
+        for(int y = bounds[1]; y < bounds[4]; y++) {
+            for(int z = bounds[2]; z < bounds[5]; z++) {
+                for(int x = bounds[0]; x < bounds[3]; x++) {
+                    BlockState state = states.get(x & 15, y & 15, z & 15);
+                    if(state != lastState) {
+                        lastState = state;
+                        if(state.isAir()) {
+                            lastIndex = 0;
+                        } else {
+                            lastIndex = localIndex.getInt(state);
+                            if(lastIndex == 0) {
+                                localPalette.add(state);
+                                lastIndex = localPalette.size();
+                                localIndex.put(state, lastIndex);
+                            }
+                        }
                     }
-                    blockStateTable.set(entry.getValue(), entry.getKey());
-                });
+                    voxels[y - minCorner.getY()][z - minCorner.getZ()][x - minCorner.getX()] = (short) lastIndex;
+                }
+            }
+        }
+        return localPalette;
+    }
 
-        return new ExtractionInfo(voxels, blockStateTable, minCorner, controllerPos, sizeX, sizeY, sizeZ);
+    private static void remapSection(RegionSnapshot snapshot, int section, short[][][] voxels, int[] remap) {
+        int[] bounds = snapshot.sectionBounds(section);
+        BlockPos minCorner = snapshot.minCorner();
+        for(int y = bounds[1]; y < bounds[4]; y++) {
+            short[][] layer = voxels[y - minCorner.getY()];
+            for(int z = bounds[2]; z < bounds[5]; z++) {
+                short[] row = layer[z - minCorner.getZ()];
+                for(int x = bounds[0]; x < bounds[3]; x++) {
+                    int i = x - minCorner.getX();
+                    row[i] = (short) remap[row[i]];
+                }
+            }
+        }
+    }
+
+    private record RegionSnapshot(PalettedContainer<BlockState>[] sections,
+                                  int minSX, int minSY, int minSZ, int lenSX, int lenSY, int lenSZ,
+                                  BlockPos minCorner, BlockPos controllerPos, int sizeX, int sizeY, int sizeZ) {
+        /**
+         * @return world block bounds of the region inside the section,
+         *         as {@code minX, minY, minZ, maxX, maxY, maxZ} with exclusive maxima
+         */
+        int[] sectionBounds(int section) {
+            int sx = minSX + section % lenSX;
+            int sz = minSZ + (section / lenSX) % lenSZ;
+            int sy = minSY + section / (lenSX * lenSZ);
+            return new int[] {
+                    Math.max(minCorner.getX(), sx << 4),
+                    Math.max(minCorner.getY(), sy << 4),
+                    Math.max(minCorner.getZ(), sz << 4),
+                    Math.min(minCorner.getX() + sizeX, (sx << 4) + 16),
+                    Math.min(minCorner.getY() + sizeY, (sy << 4) + 16),
+                    Math.min(minCorner.getZ() + sizeZ, (sz << 4) + 16)
+            };
+        }
     }
 
-    private record ExtractionInfo(byte[][][] voxels, List<String> blockStateTable, BlockPos minCorner,
+    private record ExtractionInfo(short[][][] voxels, List<BlockState> blockStateTable, BlockPos minCorner,
                                   BlockPos controllerPos, int sizeX, int sizeY, int sizeZ) {
     }
 }
@@ -0,0 +1,110 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import net.minecraft.core.BlockPos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fixed 128-byte header of a {@code .fspb} file together with the raw,
+ * still unresolved type table that follows it.
+ */
+public record BlueprintHeader(int version, int sizeX, int sizeY, int sizeZ, int dataOffset,
+                              int typeCount, int flags, BlockPos controllerOffset,
+                              List<String> dependencies, byte[] typeTable) {
+
+    public static BlueprintHeader read(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(128);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+
+        byte[] magic = new byte[4];
+        header.get(magic);
+        if(!"FSPB".equals(new String(magic))) {
+            throw new Blueprint.BlueprintLoadException("Invalid blueprint format");
+        }
+
+        int version = header.getShort();
+        if(version < 1 || version > Blueprint.FORMAT_VERSION) {
+            throw new Blueprint.BlueprintLoadException("Unsupported blueprint version: " + version);
+        }
+        int sizeX = header.getShort() & 0xFFFF;
+        int sizeY = header.getShort() & 0xFFFF;
+        int sizeZ = header.getShort() & 0xFFFF;
+        int dataOffset = header.getInt();
+        int typeCount = header.getShort() & 0xFFFF;
+        byte flags = header.get();
+        byte dependencyCount = header.get();
+        int controllerX = header.getShort() & 0xFFFF;
+        int controllerY = header.getShort() & 0xFFFF;
+        int controllerZ = header.getShort() & 0xFFFF;
+        BlockPos controllerOffset = new BlockPos(controllerX, controllerY, controllerZ);
+
+        List<String> dependencies = new ArrayList<>();
+        for(int i = 0; i < dependencyCount; i++) {
+            if(header.remaining() < 1) break;
+            int modIdLen = header.get() & 0xFF;
+            byte[] modId = new byte[modIdLen];
+            header.get(modId);
+            dependencies.add(new String(modId));
+        }
+
+        if(dataOffset < 128 || dataOffset > channel.size()) {
+            throw new Blueprint.BlueprintLoadException("Invalid blueprint dataOffset: " + dataOffset);
+        }
+        ByteBuffer typeTable = ByteBuffer.allocate(dataOffset - 128);
+        channel.read(typeTable, 128);
+
+        return new BlueprintHeader(version, sizeX, sizeY, sizeZ, dataOffset, typeCount, flags & 0xFF,
+                controllerOffset, dependencies, typeTable.array());
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeShort(version);
+        out.writeShort(sizeX);
+        out.writeShort(sizeY);
+        out.writeShort(sizeZ);
+        out.writeInt(dataOffset);
+        out.writeShort(typeCount);
+        out.writeByte(flags);
+        out.writeShort(controllerOffset.getX());
+        out.writeShort(controllerOffset.getY());
+        out.writeShort(controllerOffset.getZ());
+        out.writeByte(dependencies.size());
+        for(String modId : dependencies) {
+            out.writeUTF(modId);
+        }
+        out.writeInt(typeTable.length);
+        out.write(typeTable);
+    }
+
+    public static BlueprintHeader read(DataInput in) throws IOException {
+        int version = in.readUnsignedShort();
+        int sizeX = in.readUnsignedShort();
+        int sizeY = in.readUnsignedShort();
+        int sizeZ = in.readUnsignedShort();
+        int dataOffset = in.readInt();
+        int typeCount = in.readUnsignedShort();
+        int flags = in.readUnsignedByte();
+        BlockPos controllerOffset = new BlockPos(
+                in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedShort()
+        );
+        int dependencyCount = in.readUnsignedByte();
+        List<String> dependencies = new ArrayList<>(dependencyCount);
+        for(int i = 0; i < dependencyCount; i++) {
+            dependencies.add(in.readUTF());
+        }
+        byte[] typeTable = new byte[in.readInt()];
+        in.readFully(typeTable);
+
+        return new BlueprintHeader(version, sizeX, sizeY, sizeZ, dataOffset, typeCount, flags,
+                controllerOffset, dependencies, typeTable);
+    }
+}
@@ -0,0 +1,127 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import com.mojang.logging.LogUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Persisted headers of every blueprint file keyed by file name, so unchanged
+ * files can be registered at startup without being opened. An entry is trusted
+ * when size and modification time match; when only the time differs, the content
+ * hash decides.
+ */
+class BlueprintIndex {
+    private static final int MAGIC = 0x46535049;
+    private static final int VERSION = 1;
+
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private final Map<String, Entry> entries;
+
+    private BlueprintIndex(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    static BlueprintIndex load(Path indexFile) {
+        Map<String, Entry> entries = new HashMap<>();
+        if(!Files.isRegularFile(indexFile)) {
+            return new BlueprintIndex(entries);
+        }
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.info("Ignoring outdated blueprint index {}", indexFile);
+                return new BlueprintIndex(entries);
+            }
+
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String fileName = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                long hash = in.readLong();
+                BlueprintHeader header = BlueprintHeader.read(in);
+                entries.put(fileName, new Entry(fileName, size, modified, hash, header));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read blueprint index {}, rebuilding it", indexFile, e);
+            entries.clear();
+        }
+        return new BlueprintIndex(entries);
+    }
+
+    static void save(Path indexFile, Collection<Entry> entries) {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for(Entry entry : entries) {
+                    out.writeUTF(entry.fileName());
+                    out.writeLong(entry.size());
+                    out.writeLong(entry.modified());
+                    out.writeLong(entry.hash());
+                    entry.header().write(out);
+                }
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write blueprint index {}", indexFile, e);
+        }
+    }
+
+    /**
+     * @return the stored entry if it still describes the file, updated to the file's
+     *         current modification time, or {@code null} if the file must be parsed
+     */
+    @Nullable
+    Entry lookup(Path file) throws IOException {
+        Entry entry = entries.get(file.getFileName().toString());
+        if(entry == null) return null;
+
+        long size = Files.size(file);
+        if(size != entry.size()) return null;
+
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        if(modified == entry.modified()) return entry;
+
+        return hash(file) == entry.hash() ? entry.withModified(modified) : null;
+    }
+
+    static Entry describe(Path file, BlueprintHeader header) throws IOException {
+        return new Entry(file.getFileName().toString(), Files.size(file),
+                Files.getLastModifiedTime(file).toMillis(), hash(file), header);
+    }
+
+    private static long hash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while(channel.read(buffer) > 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    record Entry(String fileName, long size, long modified, long hash, BlueprintHeader header) {
+        Entry withModified(long modified) {
+            return new Entry(fileName, size, modified, hash, header);
+        }
+    }
+}
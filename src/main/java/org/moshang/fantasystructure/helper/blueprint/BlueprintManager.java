@@ -2,25 +2,35 @@ package org.moshang.fantasystructure.helper.blueprint;
 
 import com.mojang.logging.LogUtils;
 import net.minecraft.resources.ResourceLocation;
+import org.jetbrains.annotations.Nullable;
 import org.moshang.fantasystructure.Config;
 import org.moshang.fantasystructure.FantasyStructure;
 import org.moshang.fantasystructure.helper.StructurePattern;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings("removal")
 public class BlueprintManager {
     private static final Map<ResourceLocation, Blueprint> REGISTRY = new ConcurrentHashMap<>();
+    private static final PatternCache<Blueprint> DECODED = new PatternCache<>();
 
+    private static final AtomicLong CACHE_HITS = new AtomicLong();
+    private static final AtomicLong CACHE_MISSES = new AtomicLong();
+    private static final AtomicLong CACHE_EVICTIONS = new AtomicLong();
+
+    private static Path blueprintDir;
     private static ExecutorService LOADING_THREAD_POOL;
     private static volatile boolean initialized = false;
 
@@ -37,7 +47,7 @@ public class BlueprintManager {
 
         if(initialized) return;
 
-        Path blueprintDir = configDir.resolve("fantasystructure/blueprints");
+        blueprintDir = configDir.resolve("fantasystructure/blueprints");
         try {
             Files.createDirectories(blueprintDir);
 
@@ -49,14 +59,25 @@ public class BlueprintManager {
 
             totalFiles = files.size();
 
+            Path indexFile = blueprintDir.resolveSibling("blueprints.index");
+            BlueprintIndex index = BlueprintIndex.load(indexFile);
+
             List<Future<LoadResult>> futures = new ArrayList<>();
             for(Path file : files) {
-                futures.add(LOADING_THREAD_POOL.submit(() -> loadBlueprint(file)));
+                futures.add(LOADING_THREAD_POOL.submit(() -> loadBlueprint(file, index)));
             }
 
+            List<BlueprintIndex.Entry> indexEntries = new ArrayList<>();
+            int indexedCounts = 0;
             for(Future<LoadResult> future : futures) {
                 try {
                     LoadResult result = future.get();
+                    if(result.indexEntry != null) {
+                        indexEntries.add(result.indexEntry);
+                    }
+                    if(result.fromIndex) {
+                        indexedCounts++;
+                    }
                     if(result.success) {
                         REGISTRY.put(result.id, result.blueprint);
                         loadedCounts++;
@@ -67,7 +88,10 @@ public class BlueprintManager {
                     skippedCounts++;
                 }
             }
+            BlueprintIndex.save(indexFile, indexEntries);
 
+            LOGGER.info("registered {} of {} blueprints, {} from the header index",
+                    loadedCounts, totalFiles, indexedCounts);
             initialized = true;
             LOGGER.info("initialized blueprint manager with {} threads free", threadCount);
         } catch (IOException e) {
@@ -84,22 +108,125 @@ public class BlueprintManager {
         }
     }
 
-    private static LoadResult loadBlueprint(Path file) {
+    /**
+     * Registers the blueprint stored in {@code file}, replacing one with the same id.
+     * Files outside the blueprint directory are ignored.
+     * @return {@code true} if the file was registered
+     */
+    public static boolean register(Path file) {
+        if(blueprintDir == null || !blueprintDir.toAbsolutePath().normalize()
+                .equals(file.toAbsolutePath().normalize().getParent())) return false;
+
+        LoadResult result = loadBlueprint(file, null);
+        if(!result.success) {
+            LOGGER.warn("Failed to register blueprint {}: {}", file, result.error);
+            return false;
+        }
+        Blueprint previous = REGISTRY.put(result.id, result.blueprint);
+        if(previous != null) {
+            release(previous);
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters the blueprint loaded from {@code file} and releases its file mapping,
+     * so the file can be replaced.
+     * @return the released blueprint, or {@code null} if none was loaded from the file
+     */
+    @Nullable
+    static Blueprint unregister(Path file) {
+        Path target = file.toAbsolutePath().normalize();
+        for(Blueprint blueprint : REGISTRY.values()) {
+            if(target.equals(blueprint.getBinaryPath().toAbsolutePath().normalize())
+                    && REGISTRY.remove(blueprint.getId(), blueprint)) {
+                release(blueprint);
+                return blueprint;
+            }
+        }
+        return null;
+    }
+
+    private static void release(Blueprint blueprint) {
+        DECODED.remove(blueprint);
+        blueprint.release();
+    }
+
+    private static LoadResult loadBlueprint(Path file, @Nullable BlueprintIndex index) {
+        String name = file.getFileName().toString().replace(".fspb", "");
+        ResourceLocation id = new ResourceLocation(FantasyStructure.MODID, name);
+        BlueprintIndex.Entry entry = null;
+        boolean fromIndex = false;
         try {
-            String name = file.getFileName().toString().replace(".fspb", "");
-            ResourceLocation id = new ResourceLocation(FantasyStructure.MODID, name);
+            entry = index == null ? null : index.lookup(file);
+            fromIndex = entry != null;
+            if(entry == null) {
+                BlueprintHeader header;
+                try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    header = BlueprintHeader.read(channel);
+                }
+                entry = BlueprintIndex.describe(file, header);
+            }
 
-            Blueprint blueprint = Blueprint.fromBinary(id, file);
-            return new LoadResult(id, blueprint, null);
+            Blueprint blueprint = Blueprint.fromHeader(id, file, entry.header());
+            blueprint.setContentHash(entry.hash());
+            return new LoadResult(id, blueprint, null, entry, fromIndex);
         } catch (Blueprint.BlueprintLoadException e) {
             e.printStackTrace();
-            return new LoadResult(null, null, e.getMessage());
+            return new LoadResult(null, null, e.getMessage(), entry, fromIndex);
         } catch (Exception e) {
             e.printStackTrace();
-            return new LoadResult(null, null, "IO Error: " + e.getMessage());
+            return new LoadResult(null, null, "IO Error: " + e.getMessage(), entry, fromIndex);
+        }
+    }
+
+    static void recordPatternHit(Blueprint blueprint) {
+        CACHE_HITS.incrementAndGet();
+        DECODED.touch(blueprint);
+    }
+
+    /**
+     * Called after a blueprint decoded (part of) its pattern. Accounts the new size and
+     * evicts least recently used patterns until the configured budget is met again.
+     * Eviction happens outside the bookkeeping lock, as blueprints call in here while
+     * holding their own lock.
+     */
+    static void recordPatternDecoded(Blueprint blueprint) {
+        CACHE_MISSES.incrementAndGet();
+        account(blueprint, true);
+    }
+
+    /**
+     * Called after a blueprint built more from data it already had decoded: views,
+     * orientations or section requirements. Only refreshes the accounted size, and
+     * does nothing once the blueprint was evicted.
+     */
+    static void recordPatternGrown(Blueprint blueprint) {
+        account(blueprint, false);
+    }
+
+    private static void account(Blueprint blueprint, boolean decoded) {
+        long budget = Config.PATTERN_CACHE_BUDGET.get() * 1024L * 1024L;
+        List<Blueprint> victims = DECODED.account(blueprint, blueprint.getDecodedBytes(), decoded, budget);
+        for(Blueprint victim : victims) {
+            victim.evictPattern();
+            CACHE_EVICTIONS.incrementAndGet();
         }
     }
 
+    public static long getDecodedBytes() {
+        return DECODED.getBytes();
+    }
+    public static long getCacheHits() {
+        return CACHE_HITS.get();
+    }
+    public static long getCacheMisses() {
+        return CACHE_MISSES.get();
+    }
+    public static long getCacheEvictions() {
+        return CACHE_EVICTIONS.get();
+    }
+
     public static Optional<Blueprint> get(ResourceLocation id) {
         return Optional.ofNullable(REGISTRY.get(id));
     }
@@ -128,12 +255,17 @@ public class BlueprintManager {
         final Blueprint blueprint;
         final String error;
         final boolean success;
+        final BlueprintIndex.Entry indexEntry;
+        final boolean fromIndex;
 
-        LoadResult(ResourceLocation id, Blueprint blueprint, String error) {
+        LoadResult(ResourceLocation id, Blueprint blueprint, String error,
+                   BlueprintIndex.Entry indexEntry, boolean fromIndex) {
             this.id = id;
             this.blueprint = blueprint;
             this.error = error;
             this.success = blueprint != null;
+            this.indexEntry = indexEntry;
+            this.fromIndex = fromIndex;
         }
     }
 }
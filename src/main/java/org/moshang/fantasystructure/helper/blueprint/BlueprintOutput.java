@@ -0,0 +1,101 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Little-endian writer over a {@link FileChannel} that streams through a
+ * bounded direct buffer, so exports run in constant memory.
+ * The buffer is reused by every export on the same thread.
+ */
+class BlueprintOutput {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+    );
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long flushed = 0;
+
+    BlueprintOutput(FileChannel channel) {
+        this.channel = channel;
+        this.buffer = BUFFERS.get();
+        this.buffer.clear();
+    }
+
+    long position() {
+        return flushed + buffer.position();
+    }
+
+    void put(byte value) throws IOException {
+        ensure(1);
+        buffer.put(value);
+    }
+
+    void putShort(short value) throws IOException {
+        ensure(2);
+        buffer.putShort(value);
+    }
+
+    void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    void put(byte[] bytes) throws IOException {
+        int offset = 0;
+        while(offset < bytes.length) {
+            ensure(1);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    void pad(long position) throws IOException {
+        while(position() < position) {
+            put((byte) 0);
+        }
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Overwrites already written ints starting at {@code position} without
+     * moving the stream position. Must be called after {@link #flush()}.
+     */
+    void patchInts(long position, int[] values) throws IOException {
+        int index = 0;
+        while(index < values.length) {
+            buffer.clear();
+            while(index < values.length && buffer.remaining() >= 4) {
+                buffer.putInt(values[index++]);
+            }
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        buffer.clear();
+    }
+
+    void patchInt(long position, int value) throws IOException {
+        patchInts(position, new int[] { value });
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if(buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
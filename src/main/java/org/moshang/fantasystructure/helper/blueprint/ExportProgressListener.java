@@ -0,0 +1,26 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import java.util.concurrent.Executor;
+
+@FunctionalInterface
+public interface ExportProgressListener {
+    ExportProgressListener NONE = (stage, done, total) -> {};
+
+    /**
+     * Called from whichever thread runs the stage, which is an exporting thread
+     * for everything but {@link Stage#SNAPSHOT}. Use {@link #on(Executor, ExportProgressListener)}
+     * to report to a command sender on the server thread.
+     */
+    void onProgress(Stage stage, int done, int total);
+
+    static ExportProgressListener on(Executor executor, ExportProgressListener listener) {
+        return (stage, done, total) -> executor.execute(() -> listener.onProgress(stage, done, total));
+    }
+
+    enum Stage {
+        SNAPSHOT,
+        EXTRACT,
+        WRITE,
+        DONE
+    }
+}
@@ -0,0 +1,13 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+
+public record ExportResult(boolean success, Path outputFile, @Nullable String failureReason,
+                           int sizeX, int sizeY, int sizeZ, int blockTypes) {
+
+    static ExportResult failed(Path outputFile, String failureReason) {
+        return new ExportResult(false, outputFile, failureReason, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,59 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size bookkeeping of decoded patterns in least recently used order. Only decides
+ * what to evict, the caller drops the evicted data outside of this cache's lock.
+ */
+class PatternCache<K> {
+    private final LinkedHashMap<K, Long> entries = new LinkedHashMap<>(16, .75f, true);
+    private long bytes = 0;
+
+    /**
+     * Marks {@code key} as most recently used.
+     */
+    synchronized void touch(K key) {
+        entries.get(key);
+    }
+
+    /**
+     * Records the current size of {@code key} and picks least recently used entries
+     * until the total fits into {@code budget} again. {@code key} itself is never picked.
+     * @param add whether {@code key} is added if absent, otherwise an absent key is ignored
+     * @return the evicted keys, already removed from the cache
+     */
+    synchronized List<K> account(K key, long size, boolean add, long budget) {
+        List<K> victims = new ArrayList<>();
+        if(!add && !entries.containsKey(key)) return victims;
+
+        Long previous = entries.put(key, size);
+        bytes += size - (previous == null ? 0 : previous);
+
+        Iterator<Map.Entry<K, Long>> iterator = entries.entrySet().iterator();
+        while(bytes > budget && iterator.hasNext()) {
+            Map.Entry<K, Long> eldest = iterator.next();
+            if(eldest.getKey() == key) continue;
+
+            bytes -= eldest.getValue();
+            victims.add(eldest.getKey());
+            iterator.remove();
+        }
+        return victims;
+    }
+
+    synchronized void remove(K key) {
+        Long size = entries.remove(key);
+        if(size != null) {
+            bytes -= size;
+        }
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+}
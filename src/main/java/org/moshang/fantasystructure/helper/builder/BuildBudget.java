@@ -0,0 +1,71 @@
+package org.moshang.fantasystructure.helper.builder;
+
+import net.minecraft.util.Mth;
+import org.moshang.fantasystructure.Config;
+
+/**
+ * Number of blocks all builders together may place per tick. Tracks the average
+ * server tick time and the average cost of one placement, and sizes the budget
+ * so that the tick stays under the configured target, clamped between the
+ * configured floor and ceiling. Only used from the server thread.
+ */
+public class BuildBudget {
+    private static final double SMOOTHING = 0.1;
+    private static final double INITIAL_NANOS_PER_BLOCK = 50_000;
+
+    private static long tickStart = 0;
+    private static long tickBuildNanos = 0;
+    private static int tickBlocks = 0;
+
+    private static double tickNanos = 0;
+    private static double buildNanos = 0;
+    private static double nanosPerBlock = INITIAL_NANOS_PER_BLOCK;
+    private static int budget = -1;
+
+    private BuildBudget() {}
+
+    static void startTick() {
+        tickStart = System.nanoTime();
+        tickBuildNanos = 0;
+        tickBlocks = 0;
+    }
+
+    static void endTick() {
+        if(tickStart == 0) return;
+
+        long duration = System.nanoTime() - tickStart;
+        tickNanos += (duration - tickNanos) * SMOOTHING;
+        buildNanos += (tickBuildNanos - buildNanos) * SMOOTHING;
+        if(tickBlocks > 0) {
+            nanosPerBlock += ((double) tickBuildNanos / tickBlocks - nanosPerBlock) * SMOOTHING;
+        }
+
+        budget = computeBudget(tickNanos, buildNanos, nanosPerBlock, Config.BUILD_TARGET_MSPT.get(),
+                Config.BUILD_BLOCKS_MIN.get(), Config.BUILD_BLOCKS_MAX.get());
+    }
+
+    /**
+     * Blocks that fit into the time the rest of the tick leaves below {@code targetMspt},
+     * clamped to {@code [min, max]}. A ceiling below the floor is raised to the floor.
+     */
+    static int computeBudget(double tickNanos, double buildNanos, double nanosPerBlock, double targetMspt,
+                             int min, int max) {
+        double spare = targetMspt * 1_000_000D - Math.max(0, tickNanos - buildNanos);
+        return Mth.clamp((int) (spare / Math.max(1, nanosPerBlock)), min, Math.max(min, max));
+    }
+
+    static void recordBuild(long nanos, int blocks) {
+        tickBuildNanos += nanos;
+        tickBlocks += blocks;
+    }
+
+    public static int getBudget() {
+        return budget < 0 ? Config.BUILD_BLOCKS_MIN.get() : budget;
+    }
+    public static double getAverageTickMillis() {
+        return tickNanos / 1_000_000D;
+    }
+    public static double getAverageNanosPerBlock() {
+        return nanosPerBlock;
+    }
+}
@@ -0,0 +1,174 @@
+package org.moshang.fantasystructure.helper.builder;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.saveddata.SavedData;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.FantasyStructure;
+import org.moshang.fantasystructure.helper.PatternOrientation;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Build jobs of one dimension, keyed by structure origin. A job is stored as the
+ * blueprint id, origin, orientation and a bit set of completed cell indices, the
+ * task queue itself is planned again from the blueprint when the job resumes.
+ * The checksum of the blueprint file is stored with the job, so progress is
+ * dropped if the blueprint was re-exported since.
+ */
+public class BuildJobData extends SavedData {
+    private static final String NAME = FantasyStructure.MODID + "_build_jobs";
+
+    private final Map<BlockPos, BuildJob> jobs = new LinkedHashMap<>();
+
+    public static BuildJobData get(ServerLevel level) {
+        return level.getDataStorage().computeIfAbsent(BuildJobData::load, BuildJobData::new, NAME);
+    }
+
+    public static BuildJobData load(CompoundTag tag) {
+        BuildJobData data = new BuildJobData();
+        ListTag list = tag.getList("jobs", Tag.TAG_COMPOUND);
+        for(int i = 0; i < list.size(); i++) {
+            CompoundTag jobTag = list.getCompound(i);
+            ResourceLocation blueprint = ResourceLocation.tryParse(jobTag.getString("blueprint"));
+            if(blueprint == null) continue;
+
+            BuildJob job = new BuildJob(blueprint, BlockPos.of(jobTag.getLong("origin")),
+                    PatternOrientation.byId(jobTag.getByte("orientation")),
+                    BitSet.valueOf(jobTag.getLongArray("completed")));
+            job.contentHash = jobTag.getLong("hash");
+            job.active = jobTag.getBoolean("active");
+            job.paused = jobTag.getBoolean("paused");
+            job.priority = BuildPriority.byId(jobTag.getByte("priority"));
+            data.jobs.put(job.origin, job);
+        }
+        return data;
+    }
+
+    @Override
+    public CompoundTag save(CompoundTag tag) {
+        ListTag list = new ListTag();
+        for(BuildJob job : jobs.values()) {
+            CompoundTag jobTag = new CompoundTag();
+            jobTag.putString("blueprint", job.blueprint.toString());
+            jobTag.putLong("origin", job.origin.asLong());
+            jobTag.putByte("orientation", (byte) job.orientation.ordinal());
+            jobTag.putLongArray("completed", job.completed.toLongArray());
+            jobTag.putLong("hash", job.contentHash);
+            jobTag.putBoolean("active", job.active);
+            jobTag.putBoolean("paused", job.paused);
+            jobTag.putByte("priority", (byte) job.priority.ordinal());
+            list.add(jobTag);
+        }
+        tag.put("jobs", list);
+        return tag;
+    }
+
+    @Nullable
+    public BuildJob get(BlockPos origin) {
+        return jobs.get(origin);
+    }
+
+    /**
+     * @return the job at {@code origin} if it builds the same blueprint in the same
+     *         orientation, otherwise a new job replacing it
+     */
+    public BuildJob start(BlockPos origin, ResourceLocation blueprint, PatternOrientation orientation) {
+        BuildJob job = jobs.get(origin);
+        if(job == null || !job.blueprint.equals(blueprint) || job.orientation != orientation) {
+            job = new BuildJob(blueprint, origin.immutable(), orientation, new BitSet());
+            jobs.put(job.origin, job);
+        }
+        job.active = true;
+        job.paused = false;
+        setDirty();
+        return job;
+    }
+
+    public void remove(BuildJob job) {
+        if(jobs.remove(job.origin, job)) {
+            setDirty();
+        }
+    }
+
+    public Collection<BuildJob> getJobs() {
+        return Collections.unmodifiableCollection(jobs.values());
+    }
+
+    public static class BuildJob {
+        private final ResourceLocation blueprint;
+        private final BlockPos origin;
+        private final PatternOrientation orientation;
+        private final BitSet completed;
+        private long contentHash;
+        /** Still building, as opposed to stopped with blocks it could not place. */
+        private boolean active;
+        private boolean paused;
+        private BuildPriority priority = BuildPriority.NORMAL;
+        /** A builder currently works on this job, not persisted. */
+        private boolean running;
+
+        private BuildJob(ResourceLocation blueprint, BlockPos origin, PatternOrientation orientation, BitSet completed) {
+            this.blueprint = blueprint;
+            this.origin = origin;
+            this.orientation = orientation;
+            this.completed = completed;
+        }
+
+        public ResourceLocation getBlueprint() {
+            return blueprint;
+        }
+        public BlockPos getOrigin() {
+            return origin;
+        }
+        public PatternOrientation getOrientation() {
+            return orientation;
+        }
+        public BitSet getCompleted() {
+            return completed;
+        }
+        /**
+         * Clears the progress if it was recorded against another version of the blueprint file.
+         * @return {@code true} if the stored checksum changed
+         */
+        boolean updateContentHash(long hash) {
+            if(contentHash == hash) return false;
+
+            completed.clear();
+            contentHash = hash;
+            return true;
+        }
+        public boolean isActive() {
+            return active;
+        }
+        void setActive(boolean active) {
+            this.active = active;
+        }
+        public boolean isPaused() {
+            return paused;
+        }
+        void setPaused(boolean paused) {
+            this.paused = paused;
+        }
+        public BuildPriority getPriority() {
+            return priority;
+        }
+        void setPriority(BuildPriority priority) {
+            this.priority = priority;
+        }
+        public boolean isRunning() {
+            return running;
+        }
+        void setRunning(boolean running) {
+            this.running = running;
+        }
+    }
+}
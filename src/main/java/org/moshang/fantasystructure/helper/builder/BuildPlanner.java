@@ -0,0 +1,84 @@
+package org.moshang.fantasystructure.helper.builder;
+
+import com.mojang.logging.LogUtils;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.LevelReader;
+import net.minecraft.world.level.block.FallingBlock;
+import net.minecraft.world.level.block.state.BlockState;
+import org.moshang.fantasystructure.data.BlockInfo;
+import org.moshang.fantasystructure.data.blueprint.PaletteVoxels;
+import org.moshang.fantasystructure.helper.PatternOrientation;
+import org.moshang.fantasystructure.helper.StructurePattern;
+import org.slf4j.Logger;
+
+import java.util.*;
+
+/**
+ * Orders the cells of a pattern for building: chunk by chunk, and within a chunk
+ * bottom-up layer by layer, so placements stay in few chunks at a time and blocks
+ * below are placed before the blocks they carry.
+ */
+public class BuildPlanner {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private BuildPlanner() {}
+
+    /**
+     * Cells outside the build height of {@code level} are left out and reported once.
+     * @param completed cell indices that are already done and are left out
+     * @return the cells to place in {@code orientation}, the controller itself excluded
+     */
+    public static List<BuildTask> plan(LevelHeightAccessor level, StructurePattern pattern, BlockPos center,
+                                       PatternOrientation orientation, BitSet completed) {
+        pattern.recordUse();
+        PaletteVoxels voxels = pattern.getVoxels();
+        List<BuildTask> tasks = new ArrayList<>(voxels.getNonEmptyCount());
+        Map<BlockInfo, BlockInfo> transformed = new IdentityHashMap<>();
+        int[] outside = new int[1];
+        voxels.forEach((x, y, z, blockInfo) -> {
+            if((x != 0 || y != 0 || z != 0) && !blockInfo.isAir()) {
+                int cell = voxels.cellIndex(x, y, z);
+                if(completed.get(cell)) return true;
+                if(level.isOutsideBuildHeight(center.getY() + y)) {
+                    outside[0]++;
+                    return true;
+                }
+
+                BlockPos offset = new BlockPos(orientation.transformX(x, z), y, orientation.transformZ(x, z));
+                tasks.add(new BuildTask(offset, transformed.computeIfAbsent(blockInfo, info -> info.transform(orientation)), cell));
+            }
+            return true;
+        });
+
+        if(outside[0] > 0) {
+            LOGGER.warn("{} blocks of the structure at {} are outside the build height and are skipped",
+                    outside[0], center);
+        }
+
+        int cx = center.getX(), cz = center.getZ();
+        tasks.sort(Comparator.<BuildTask>comparingInt(task -> SectionPos.blockToSectionCoord(cx + task.offset().getX()))
+                .thenComparingInt(task -> SectionPos.blockToSectionCoord(cz + task.offset().getZ()))
+                .thenComparingInt(task -> task.offset().getY())
+                .thenComparingInt(task -> task.offset().getZ())
+                .thenComparingInt(task -> task.offset().getX()));
+        return tasks;
+    }
+
+    /**
+     * @return {@code true} if {@code state} would drop or fall at {@code pos} right now
+     */
+    public static boolean lacksSupport(LevelReader level, BlockPos pos, BlockState state) {
+        if(state.getBlock() instanceof FallingBlock && FallingBlock.isFree(level.getBlockState(pos.below()))) {
+            return true;
+        }
+        return !state.canSurvive(level, pos);
+    }
+
+    /**
+     * One block to place, at a controller-relative offset, with the index of its cell in the blueprint.
+     */
+    public record BuildTask(BlockPos offset, BlockInfo info, int cell) {
+    }
+}
@@ -0,0 +1,26 @@
+package org.moshang.fantasystructure.helper.builder;
+
+/**
+ * Share of the placement budget a build gets relative to the others, see {@link BuildQueue}.
+ */
+public enum BuildPriority {
+    LOW(1),
+    NORMAL(2),
+    HIGH(4);
+
+    private static final BuildPriority[] VALUES = values();
+
+    private final int weight;
+
+    BuildPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public static BuildPriority byId(int id) {
+        return id >= 0 && id < VALUES.length ? VALUES[id] : NORMAL;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,147 @@
+package org.moshang.fantasystructure.helper.builder;
+
+import net.minecraft.core.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The builders of one level, served by weighted deficit round-robin. Every tick
+ * each running builder is credited its priority's share of the level's budget and
+ * may place as many blocks as it has credit for, so shares smaller than a block
+ * add up over ticks instead of rounding down to nothing. Budget left over by
+ * builders that ran out of work goes to the others in turn. Only used from the
+ * server thread.
+ */
+class BuildQueue<T extends BuildQueue.Entry> {
+    private final List<T> builders = new ArrayList<>();
+    private int cursor = 0;
+
+    void add(T builder) {
+        builders.add(builder);
+    }
+
+    @Nullable
+    T get(BlockPos center) {
+        for(T builder : builders) {
+            if(builder.getCenter().equals(center)) return builder;
+        }
+        return null;
+    }
+
+    void remove(T builder) {
+        if(builders.remove(builder)) {
+            builder.release();
+        }
+    }
+
+    boolean isEmpty() {
+        return builders.isEmpty();
+    }
+
+    /**
+     * @return the summed priority weight of all builders that are not paused
+     */
+    int getWeight() {
+        int weight = 0;
+        for(T builder : builders) {
+            if(!builder.isPaused()) weight += builder.getPriority().getWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * Runs the builders within {@code budget} and drops the ones that finished or
+     * whose chunk was unloaded, their jobs stay stored and resume later.
+     * @return the number of blocks handled
+     */
+    int tick(int budget) {
+        int size = builders.size();
+        int weight = getWeight();
+        int remaining = budget;
+        int start = size > 0 ? cursor % size : 0;
+
+        if(weight > 0 && budget > 0) {
+            for(int i = 0; i < size; i++) {
+                T builder = builders.get((start + i) % size);
+                if(!isRunnable(builder)) continue;
+
+                long share = (long) budget * builder.getPriority().getWeight();
+                long credit = builder.getCredit() + share;
+                int allowed = (int) Math.min(remaining, credit / weight);
+                int done = allowed > 0 ? builder.tick(allowed) : 0;
+                remaining -= done;
+                // a builder that stopped short has no more work this tick and must not save up
+                builder.setCredit(done < allowed ? 0 : Math.min(credit - (long) done * weight, share + weight));
+            }
+            for(int i = 0; i < size && remaining > 0; i++) {
+                T builder = builders.get((start + i) % size);
+                if(isRunnable(builder) && builder.hasTasks()) {
+                    remaining -= builder.tick(remaining);
+                }
+            }
+        }
+
+        Iterator<T> iterator = builders.iterator();
+        while(iterator.hasNext()) {
+            T builder = iterator.next();
+            if(!builder.isBuilding() || !builder.isLoaded()) {
+                builder.release();
+                iterator.remove();
+            }
+        }
+        cursor = builders.isEmpty() ? 0 : (start + 1) % builders.size();
+        return budget - remaining;
+    }
+
+    void clear() {
+        builders.forEach(Entry::release);
+        builders.clear();
+    }
+
+    private static boolean isRunnable(Entry builder) {
+        return builder.isBuilding() && !builder.isPaused() && builder.isLoaded();
+    }
+
+    /**
+     * What the queue needs of a builder, see {@link StructureBuilder}.
+     */
+    abstract static class Entry {
+        /** Blocks owed to this builder, scaled by the queue's total weight. */
+        private long credit = 0;
+
+        abstract BlockPos getCenter();
+
+        abstract boolean isBuilding();
+
+        abstract boolean isPaused();
+
+        /**
+         * @return {@code false} once the builder's chunk is unloaded
+         */
+        abstract boolean isLoaded();
+
+        abstract BuildPriority getPriority();
+
+        abstract boolean hasTasks();
+
+        /**
+         * @return the number of blocks handled, at most {@code budget}
+         */
+        abstract int tick(int budget);
+
+        /**
+         * Called once the builder leaves the queue.
+         */
+        abstract void release();
+
+        long getCredit() {
+            return credit;
+        }
+        void setCredit(long credit) {
+            this.credit = credit;
+        }
+    }
+}
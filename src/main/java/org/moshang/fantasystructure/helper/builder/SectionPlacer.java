@@ -0,0 +1,164 @@
+package org.moshang.fantasystructure.helper.builder;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientboundBlockUpdatePacket;
+import net.minecraft.network.protocol.game.ClientboundSectionBlocksUpdatePacket;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects placements grouped by chunk section and writes them section by section.
+ * Each block still goes through {@code LevelChunk#setBlockState}, so heightmaps,
+ * light checks, block entities and {@code onPlace}/{@code onRemove} run per block
+ * exactly as for {@code Level#setBlock}. What is batched are the client
+ * notifications: players tracking the chunk get one section update packet per
+ * section instead of one packet per block. Neighbour shapes are updated after
+ * each section like {@code setBlock} with flag 2 does.
+ */
+class SectionPlacer {
+    private static final Direction[] DIRECTIONS = Direction.values();
+    /** Flags and recursion depth {@code Level#setBlock(pos, state, 2)} passes on to shape updates. */
+    private static final int SHAPE_UPDATE_FLAGS = Block.UPDATE_CLIENTS;
+    private static final int SHAPE_UPDATE_LIMIT = 511;
+
+    private final ServerLevel level;
+    private final Long2ObjectLinkedOpenHashMap<Batch> batches = new Long2ObjectLinkedOpenHashMap<>();
+    private final LongSet pending = new LongOpenHashSet();
+
+    SectionPlacer(ServerLevel level) {
+        this.level = level;
+    }
+
+    void add(BlockPos pos, BlockState state) {
+        batches.computeIfAbsent(SectionPos.asLong(pos), k -> new Batch())
+                .add(SectionPos.sectionRelativePos(pos), state);
+        pending.add(pos.asLong());
+    }
+
+    /**
+     * @return {@code true} if a placement next to {@code pos} is collected but not written yet
+     */
+    boolean hasPendingAround(BlockPos pos) {
+        if(pending.isEmpty()) return false;
+        long packed = pos.asLong();
+        for(Direction direction : DIRECTIONS) {
+            if(pending.contains(BlockPos.offset(packed, direction))) return true;
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return batches.isEmpty();
+    }
+
+    /**
+     * Writes all collected placements and clears the batches.
+     * @return the number of blocks that changed
+     */
+    int flush() {
+        int changed = 0;
+        for(Long2ObjectMap.Entry<Batch> entry : batches.long2ObjectEntrySet()) {
+            changed += place(SectionPos.of(entry.getLongKey()), entry.getValue());
+        }
+        batches.clear();
+        pending.clear();
+        return changed;
+    }
+
+    private int place(SectionPos sectionPos, Batch batch) {
+        LevelChunk chunk = level.getChunk(sectionPos.x(), sectionPos.z());
+        int sectionIndex = chunk.getSectionIndexFromSectionY(sectionPos.y());
+        if(sectionIndex < 0 || sectionIndex >= chunk.getSectionsCount()) return 0;
+
+        ShortSet changed = new ShortOpenHashSet(batch.positions.size());
+        List<BlockPos> changedPos = new ArrayList<>(batch.positions.size());
+        List<BlockState> previousStates = new ArrayList<>(batch.positions.size());
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        for(int i = 0; i < batch.positions.size(); i++) {
+            short relative = batch.positions.getShort(i);
+            BlockState state = batch.states.get(i);
+            pos.set(sectionPos.relativeToBlockX(relative), sectionPos.relativeToBlockY(relative),
+                    sectionPos.relativeToBlockZ(relative));
+
+            BlockState previous = chunk.setBlockState(pos, state, false);
+            if(previous != null) {
+                BlockPos placed = pos.immutable();
+                level.onBlockStateChange(placed, previous, state);
+                changed.add(relative);
+                changedPos.add(placed);
+                previousStates.add(previous);
+            }
+        }
+        for(int i = 0; i < changedPos.size(); i++) {
+            BlockPos placed = changedPos.get(i);
+            BlockState state = level.getBlockState(placed);
+            previousStates.get(i).updateIndirectNeighbourShapes(level, placed, SHAPE_UPDATE_FLAGS, SHAPE_UPDATE_LIMIT);
+            state.updateNeighbourShapes(level, placed, SHAPE_UPDATE_FLAGS, SHAPE_UPDATE_LIMIT);
+            state.updateIndirectNeighbourShapes(level, placed, SHAPE_UPDATE_FLAGS, SHAPE_UPDATE_LIMIT);
+        }
+        if(!changed.isEmpty()) {
+            broadcast(chunk, sectionPos, changed, chunk.getSection(sectionIndex));
+        }
+        return changed.size();
+    }
+
+    private void broadcast(LevelChunk chunk, SectionPos sectionPos, ShortSet changed, LevelChunkSection section) {
+        List<ServerPlayer> players = level.getChunkSource().chunkMap.getPlayers(chunk.getPos(), false);
+        if(players.isEmpty()) return;
+
+        Packet<?> packet;
+        if(changed.size() == 1) {
+            short relative = changed.iterator().nextShort();
+            packet = new ClientboundBlockUpdatePacket(sectionPos.relativeToBlockPos(relative),
+                    section.getBlockState(SectionPos.sectionRelativeX(relative),
+                            SectionPos.sectionRelativeY(relative), SectionPos.sectionRelativeZ(relative)));
+        } else {
+            packet = new ClientboundSectionBlocksUpdatePacket(sectionPos, changed, section);
+        }
+
+        List<Packet<?>> blockEntityPackets = new ArrayList<>();
+        for(short relative : changed) {
+            BlockEntity be = chunk.getBlockEntity(sectionPos.relativeToBlockPos(relative));
+            if(be == null) continue;
+            Packet<?> update = be.getUpdatePacket();
+            if(update != null) {
+                blockEntityPackets.add(update);
+            }
+        }
+
+        for(ServerPlayer player : players) {
+            player.connection.send(packet);
+            for(Packet<?> update : blockEntityPackets) {
+                player.connection.send(update);
+            }
+        }
+    }
+
+    private static class Batch {
+        private final ShortArrayList positions = new ShortArrayList();
+        private final List<BlockState> states = new ArrayList<>();
+
+        void add(short relative, BlockState state) {
+            positions.add(relative);
+            states.add(state);
+        }
+    }
+}
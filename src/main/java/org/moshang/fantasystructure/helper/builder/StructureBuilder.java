@@ -2,41 +2,70 @@ package org.moshang.fantasystructure.helper.builder;
 
 import com.mojang.logging.LogUtils;
 import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.state.BlockState;
-import org.moshang.fantasystructure.data.BlockInfo;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.helper.PatternOrientation;
 import org.moshang.fantasystructure.helper.StructurePattern;
+import org.moshang.fantasystructure.helper.blueprint.Blueprint;
+import org.moshang.fantasystructure.helper.blueprint.BlueprintManager;
+import org.moshang.fantasystructure.helper.builder.BuildJobData.BuildJob;
+import org.moshang.fantasystructure.helper.builder.BuildPlanner.BuildTask;
 import org.slf4j.Logger;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Queue;
 
-public class StructureBuilder {
+public class StructureBuilder extends BuildQueue.Entry {
     private final Level level;
     private final BlockPos center;
-    private final Queue<Map.Entry<BlockPos, BlockInfo>> taskQueue = new LinkedList<>();
-    private final Map<BlockPos, BlockInfo> occupiedBlock = new HashMap<>();
+    private final Queue<BuildTask> taskQueue = new ArrayDeque<>();
+    private final Queue<BuildTask> deferred = new ArrayDeque<>();
+    private final List<BuildTask> occupiedBlock = new ArrayList<>();
+    @Nullable
+    private final SectionPlacer placer;
+    @Nullable
+    private final BuildJobData data;
+    @Nullable
+    private final BuildJob job;
+    private final BitSet completed;
 
     private boolean building = false;
+    private boolean paused;
+    private BuildPriority priority;
+    /** Ticks with progress since the job was last marked dirty. */
+    private int unsavedTicks = 0;
+    private int deferredRound = 0;
+    private boolean deferredRoundActive = false;
+    private boolean deferredProgress = false;
 
-    private static final int BLOCKS_PER_TICK = 8;
     private static final Logger LOGGER = LogUtils.getLogger();
+    /**
+     * Progress is persisted at most this often, the bit set is as large as the blueprint
+     * volume. Lost progress is cheap to recover, cells already built are recognised again.
+     */
+    private static final int SAVE_INTERVAL = 1200;
 
-    public StructureBuilder(Level level, BlockPos center, StructurePattern pattern) {
+    public StructureBuilder(Level level, BlockPos center, StructurePattern pattern, PatternOrientation orientation,
+                            @Nullable BuildJobData data, @Nullable BuildJob job) {
         this.level = level;
         this.center = center;
-
-        Map<BlockPos, BlockInfo> patternMap = pattern.getBlockPattern();
-
-        for(Map.Entry<BlockPos, BlockInfo> entry : patternMap.entrySet()) {
-            BlockPos relativePos = entry.getKey();
-            BlockInfo blockInfo = entry.getValue();
-            if(!relativePos.equals(BlockPos.ZERO) && !blockInfo.isAir()) {
-                taskQueue.offer(entry);
-            }
+        this.placer = level instanceof ServerLevel serverLevel ? new SectionPlacer(serverLevel) : null;
+        this.data = data;
+        this.job = job;
+        if(job != null && job.updateContentHash(BlueprintManager.get(job.getBlueprint())
+                .map(Blueprint::getContentHash).orElse(0L))) {
+            data.setDirty();
         }
+        this.completed = job != null ? job.getCompleted() : new BitSet();
+        this.paused = job != null && job.isPaused();
+        this.priority = job != null ? job.getPriority() : BuildPriority.NORMAL;
+
+        taskQueue.addAll(BuildPlanner.plan(level, pattern, center, orientation, completed));
     }
 
     public void start() {
@@ -45,17 +74,25 @@ public class StructureBuilder {
         }
     }
 
-    public void tick() {
-        if(taskQueue.isEmpty()) return;
+    /**
+     * @param budget maximum number of blocks to handle this tick, see {@link BuildBudget}
+     * @return the number of blocks handled
+     */
+    @Override
+    public int tick(int budget) {
+        if(!hasTasks()) return 0;
 
         int placed = 0;
+        boolean progress = false;
 
-        while(!taskQueue.isEmpty() && placed < BLOCKS_PER_TICK) {
+        while(placed < budget) {
+            boolean fromDeferred = taskQueue.isEmpty();
+            BuildTask task = nextTask();
+            if(task == null) break;
             LOGGER.debug("remaining {} blocks", taskQueue.size());
             LOGGER.debug("occupied {} blocks", occupiedBlock.size());
-            Map.Entry<BlockPos, BlockInfo> entry = taskQueue.poll();
-            BlockPos worldPos = center.offset(entry.getKey());
-            BlockState targetState = entry.getValue().getExpectedState();
+            BlockPos worldPos = center.offset(task.offset());
+            BlockState targetState = task.info().getExpectedState();
 
             if(targetState.isAir()) {
                 continue;
@@ -63,45 +100,185 @@ public class StructureBuilder {
 
             BlockState state = level.getBlockState(worldPos);
             if(!state.isAir()) {
-                if(!state.equals(targetState)) {
+                if(state.equals(targetState)) {
+                    completed.set(task.cell());
+                    progress = true;
+                } else {
                     LOGGER.debug("skip one block");
-                    occupiedBlock.put(entry.getKey(), entry.getValue());
+                    occupiedBlock.add(task);
                     placed++;
                 }
                 continue;
             }
 
-            if(level.setBlock(worldPos, targetState, 2)) {
+            if(lacksSupport(worldPos, targetState)) {
+                deferred.offer(task);
+                placed++;
+                continue;
+            }
+            if(fromDeferred) {
+                deferredProgress = true;
+            }
+
+            if(placer != null) {
+                placer.add(worldPos, targetState);
+                completed.set(task.cell());
+                progress = true;
+                placed++;
+            } else if(level.setBlock(worldPos, targetState, 2)) {
+                completed.set(task.cell());
+                progress = true;
                 placed++;
             } else {
-                taskQueue.offer(entry);
-                LOGGER.debug("task add in queue again. block {}, worldPos: {}", entry.getValue().getExpectedState(), worldPos);
+                taskQueue.offer(task);
+                LOGGER.debug("task add in queue again. block {}, worldPos: {}", targetState, worldPos);
             }
         }
+        if(placer != null) {
+            placer.flush();
+        }
+        if(data != null && progress && ++unsavedTicks >= SAVE_INTERVAL) {
+            unsavedTicks = 0;
+            data.setDirty();
+        }
 
-        if(taskQueue.isEmpty()) {
+        if(!hasTasks()) {
             complete();
         }
+        return placed;
+    }
+
+    /**
+     * Checks support against the world including placements collected this tick,
+     * the batch is only written early when a neighbour is still pending.
+     */
+    private boolean lacksSupport(BlockPos pos, BlockState state) {
+        if(!BuildPlanner.lacksSupport(level, pos, state)) return false;
+        if(placer == null || !placer.hasPendingAround(pos)) return true;
+
+        placer.flush();
+        return BuildPlanner.lacksSupport(level, pos, state);
+    }
+
+    @Override
+    public boolean hasTasks() {
+        return !taskQueue.isEmpty() || !deferred.isEmpty();
+    }
+
+    /**
+     * Takes from the planned queue first, then retries blocks that lacked support
+     * in rounds. A round without any placement gives the rest up as occupied.
+     */
+    @Nullable
+    private BuildTask nextTask() {
+        if(!taskQueue.isEmpty()) return taskQueue.poll();
+        if(deferred.isEmpty()) return null;
+
+        if(deferredRound == 0) {
+            if(deferredRoundActive && !deferredProgress) {
+                occupiedBlock.addAll(deferred);
+                deferred.clear();
+                deferredRoundActive = false;
+                return null;
+            }
+            if(placer != null) {
+                placer.flush();
+            }
+            deferredRound = deferred.size();
+            deferredProgress = false;
+            deferredRoundActive = true;
+        }
+        deferredRound--;
+        return deferred.poll();
     }
 
     private void complete() {
         building = false;
+        deferredRoundActive = false;
         if(!occupiedBlock.isEmpty()) {
-            occupiedBlock.entrySet().forEach(taskQueue::offer);
+            taskQueue.addAll(occupiedBlock);
             occupiedBlock.clear();
-            StructureBuilderManager.addIncomplete(this);
-        } else {
-            StructureBuilderManager.removeIncomplete(this);
+            if(job != null) {
+                job.setActive(false);
+                data.setDirty();
+            }
+        } else if(job != null) {
+            data.remove(job);
+        }
+    }
+
+    /**
+     * Marks the job dirty if it made progress since it was last saved.
+     */
+    void saveProgress() {
+        if(data != null && unsavedTicks > 0) {
+            unsavedTicks = 0;
+            data.setDirty();
         }
     }
 
+    @Override
+    void release() {
+        saveProgress();
+        if(job != null) {
+            job.setRunning(false);
+        }
+    }
+
+    /**
+     * Stops building and forgets the stored progress.
+     */
+    public void cancel() {
+        building = false;
+        if(job != null) {
+            data.remove(job);
+        }
+    }
+
+    /**
+     * @return {@code false} once the chunk holding the controller is unloaded
+     */
+    @Override
+    public boolean isLoaded() {
+        return level.isLoaded(center);
+    }
+
     public Level getLevel() {
         return level;
     }
+    @Override
     public BlockPos getCenter() {
         return center;
     }
+    @Override
     public boolean isBuilding() {
         return building;
     }
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        setCredit(0);
+        if(job != null) {
+            job.setPaused(paused);
+            data.setDirty();
+        }
+    }
+    @Override
+    public BuildPriority getPriority() {
+        return priority;
+    }
+    public void setPriority(BuildPriority priority) {
+        this.priority = priority;
+        if(job != null) {
+            job.setPriority(priority);
+            data.setDirty();
+        }
+    }
+    @Nullable
+    public BuildJob getJob() {
+        return job;
+    }
 }
@@ -1,55 +1,224 @@
 package org.moshang.fantasystructure.helper.builder;
 
 import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.Level;
 import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.level.LevelEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.helper.PatternOrientation;
 import org.moshang.fantasystructure.helper.StructurePattern;
+import org.moshang.fantasystructure.helper.blueprint.BlueprintManager;
+import org.moshang.fantasystructure.helper.builder.BuildJobData.BuildJob;
 
 import java.util.*;
 
+/**
+ * Keeps one {@link BuildQueue} per level, ticked with that level. The placement
+ * budget of a server tick is shared by all levels in proportion to the priority
+ * weight of their running builds, and whatever a level leaves unused carries
+ * over to the levels ticked after it.
+ */
 public class StructureBuilderManager {
-    private static final List<StructureBuilder> BUILDERS = new ArrayList<>();
-    private static final Map<BlockPos, StructureBuilder> INCOMPLETE = new LinkedHashMap<>(4, .75f, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<BlockPos, StructureBuilder> eldest) {
-            return size() > 4;
-        }
-    };
+    private static final int RESUME_INTERVAL = 20;
+
+    private static final Map<ResourceKey<Level>, BuildQueue<StructureBuilder>> QUEUES = new HashMap<>();
+    private static int resumeCountdown = 0;
+    private static int tickBudget = 0;
+    private static int tickWeight = 0;
 
     @SubscribeEvent
     public static void onServerTick(TickEvent.ServerTickEvent event) {
-        if(event.phase == TickEvent.Phase.END) return;
+        if(event.phase == TickEvent.Phase.END) {
+            BuildBudget.endTick();
+            return;
+        }
+        BuildBudget.startTick();
+        if(--resumeCountdown <= 0) {
+            resumeCountdown = RESUME_INTERVAL;
+            for(ServerLevel level : event.getServer().getAllLevels()) {
+                resumeJobs(level);
+            }
+        }
+
+        tickBudget = BuildBudget.getBudget();
+        tickWeight = 0;
+        for(BuildQueue<StructureBuilder> queue : QUEUES.values()) {
+            tickWeight += queue.getWeight();
+        }
+    }
+
+    @SubscribeEvent
+    public static void onLevelTick(TickEvent.LevelTickEvent event) {
+        if(event.phase != TickEvent.Phase.START || !(event.level instanceof ServerLevel level)) return;
+        BuildQueue<StructureBuilder> queue = QUEUES.get(level.dimension());
+        if(queue == null) return;
+        if(queue.isEmpty()) {
+            QUEUES.remove(level.dimension());
+            return;
+        }
+
+        int weight = queue.getWeight();
+        int share = weight >= tickWeight ? tickBudget : (int) ((long) tickBudget * weight / tickWeight);
+        long start = System.nanoTime();
+        int handled = queue.tick(share);
+        BuildBudget.recordBuild(System.nanoTime() - start, handled);
 
-        Iterator<StructureBuilder> iterator = BUILDERS.iterator();
-        while(iterator.hasNext()) {
-            StructureBuilder builder = iterator.next();
-            builder.tick();
+        tickBudget -= handled;
+        tickWeight = Math.max(0, tickWeight - weight);
+    }
 
-            if(!builder.isBuilding()) {
-                iterator.remove();
+    @SubscribeEvent
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if(event.getLevel() instanceof ServerLevel level) {
+            BuildQueue<StructureBuilder> queue = QUEUES.remove(level.dimension());
+            if(queue != null) {
+                queue.clear();
             }
         }
     }
 
+    /**
+     * Picks up active jobs that have no builder, after a restart or once their chunk is loaded again.
+     * Jobs whose blueprint is not registered stay stored and are retried on later passes.
+     */
+    private static void resumeJobs(ServerLevel level) {
+        BuildJobData data = BuildJobData.get(level);
+        for(BuildJob job : data.getJobs()) {
+            if(!job.isActive() || job.isRunning() || !level.isLoaded(job.getOrigin())) continue;
+
+            StructurePattern pattern = BlueprintManager.getPattern(job.getBlueprint());
+            if(pattern == null) continue;
+
+            StructureBuilder builder = new StructureBuilder(level, job.getOrigin(), pattern, job.getOrientation(), data, job);
+            job.setRunning(true);
+            builder.start();
+            getQueue(level).add(builder);
+        }
+    }
+
+    private static BuildQueue<StructureBuilder> getQueue(ServerLevel level) {
+        return QUEUES.computeIfAbsent(level.dimension(), key -> new BuildQueue<>());
+    }
+
     public static void startBuild(Level level, BlockPos center, StructurePattern pattern) {
-        StructureBuilder sbuilder = getOrCreate(level, center, pattern);
-        sbuilder.start();
-        BUILDERS.add(sbuilder);
+        startBuild(level, center, pattern, PatternOrientation.NONE);
+    }
+
+    public static void startBuild(Level level, BlockPos center, StructurePattern pattern, PatternOrientation orientation) {
+        startBuild(level, center, pattern, orientation, null);
+    }
+
+    /**
+     * Starts or continues the build at {@code center}. A build that is already
+     * running there is resumed if paused.
+     * @param priority the priority to build with, or {@code null} to keep the stored one
+     */
+    public static void startBuild(Level level, BlockPos center, StructurePattern pattern, PatternOrientation orientation,
+                                  @Nullable BuildPriority priority) {
+        if(!(level instanceof ServerLevel serverLevel)) return;
+
+        StructureBuilder sbuilder = getBuilder(serverLevel, center);
+        if(sbuilder != null) {
+            if(sbuilder.isPaused()) {
+                sbuilder.setPaused(false);
+            }
+        } else {
+            sbuilder = getOrCreate(serverLevel, center, pattern, orientation);
+            if(sbuilder == null) return;
+
+            sbuilder.start();
+            getQueue(serverLevel).add(sbuilder);
+        }
+        if(priority != null) {
+            sbuilder.setPriority(priority);
+        }
+    }
+
+    /**
+     * @return a builder continuing the stored job at {@code center}, or {@code null}
+     *         if a builder is already working on it
+     */
+    @Nullable
+    public static StructureBuilder getOrCreate(ServerLevel level, BlockPos center, StructurePattern pattern, PatternOrientation orientation) {
+        if(pattern.getBlueprintId() != null) {
+            BuildJobData data = BuildJobData.get(level);
+            BuildJob job = data.start(center, pattern.getBlueprintId(), orientation);
+            if(job.isRunning()) return null;
+
+            job.setRunning(true);
+            return new StructureBuilder(level, center, pattern, orientation, data, job);
+        }
+        return new StructureBuilder(level, center, pattern, orientation, null, null);
+    }
+
+    @Nullable
+    public static StructureBuilder getBuilder(ServerLevel level, BlockPos center) {
+        BuildQueue<StructureBuilder> queue = QUEUES.get(level.dimension());
+        return queue == null ? null : queue.get(center);
     }
 
-    public static StructureBuilder getOrCreate(Level level, BlockPos center, StructurePattern pattern) {
-        StructureBuilder sbuilder = INCOMPLETE.remove(center);
-        return sbuilder == null ? new StructureBuilder(level, center, pattern) : sbuilder;
+    /**
+     * @return {@code false} if there is no build at {@code center}
+     */
+    public static boolean pause(ServerLevel level, BlockPos center) {
+        return setPaused(level, center, true);
     }
 
-    public static void addIncomplete(StructureBuilder builder) {
-        if(!INCOMPLETE.containsKey(builder.getCenter())) {
-            INCOMPLETE.put(builder.getCenter(), builder);
+    public static boolean resume(ServerLevel level, BlockPos center) {
+        return setPaused(level, center, false);
+    }
+
+    private static boolean setPaused(ServerLevel level, BlockPos center, boolean paused) {
+        StructureBuilder builder = getBuilder(level, center);
+        if(builder != null) {
+            builder.setPaused(paused);
+            return true;
+        }
+
+        BuildJobData data = BuildJobData.get(level);
+        BuildJob job = data.get(center);
+        if(job == null) return false;
+
+        job.setPaused(paused);
+        data.setDirty();
+        return true;
+    }
+
+    public static boolean setPriority(ServerLevel level, BlockPos center, BuildPriority priority) {
+        StructureBuilder builder = getBuilder(level, center);
+        if(builder != null) {
+            builder.setPriority(priority);
+            return true;
         }
+
+        BuildJobData data = BuildJobData.get(level);
+        BuildJob job = data.get(center);
+        if(job == null) return false;
+
+        job.setPriority(priority);
+        data.setDirty();
+        return true;
     }
 
-    public static void removeIncomplete(StructureBuilder builder) {
-        INCOMPLETE.remove(builder.getCenter());
+    /**
+     * Stops the build at {@code center} and drops its stored progress, loaded or not.
+     */
+    public static boolean cancel(ServerLevel level, BlockPos center) {
+        StructureBuilder builder = getBuilder(level, center);
+        if(builder != null) {
+            getQueue(level).remove(builder);
+            builder.cancel();
+            return true;
+        }
+
+        BuildJobData data = BuildJobData.get(level);
+        BuildJob job = data.get(center);
+        if(job == null) return false;
+
+        data.remove(job);
+        return true;
     }
 }
@@ -0,0 +1,103 @@
+package org.moshang.fantasystructure.helper.validation;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+import org.moshang.fantasystructure.blockentity.BlockEntityController;
+
+import java.util.*;
+
+/**
+ * Maps chunk sections of each level to the controllers whose structure bounds
+ * overlap them, so a block change only reaches the controllers it can affect.
+ * Only used from the server thread.
+ */
+public class ControllerIndex {
+    private static final Map<Level, Long2ObjectMap<List<BlockEntityController>>> INDEX = new WeakHashMap<>();
+    private static final Map<BlockEntityController, Registration> REGISTERED = new IdentityHashMap<>();
+
+    private ControllerIndex() {}
+
+    public static void register(BlockEntityController controller, Level level, BoundingBox bounds) {
+        unregister(controller);
+
+        Long2ObjectMap<List<BlockEntityController>> sections =
+                INDEX.computeIfAbsent(level, l -> new Long2ObjectOpenHashMap<>());
+        long[] keys = sectionKeys(bounds);
+        for(long key : keys) {
+            sections.computeIfAbsent(key, k -> new ArrayList<>(1)).add(controller);
+        }
+        REGISTERED.put(controller, new Registration(level, keys));
+    }
+
+    public static void unregister(BlockEntityController controller) {
+        Registration registration = REGISTERED.remove(controller);
+        if(registration == null) return;
+
+        Long2ObjectMap<List<BlockEntityController>> sections = INDEX.get(registration.level());
+        if(sections == null) return;
+        for(long key : registration.sections()) {
+            List<BlockEntityController> controllers = sections.get(key);
+            if(controllers == null) continue;
+            controllers.remove(controller);
+            if(controllers.isEmpty()) {
+                sections.remove(key);
+            }
+        }
+        if(sections.isEmpty()) {
+            INDEX.remove(registration.level());
+        }
+    }
+
+    public static void onBlockChanged(Level level, BlockPos pos) {
+        if(INDEX.isEmpty()) return;
+
+        Long2ObjectMap<List<BlockEntityController>> sections = INDEX.get(level);
+        if(sections == null) return;
+
+        List<BlockEntityController> controllers = sections.get(SectionPos.asLong(pos));
+        if(controllers == null) return;
+        for(int i = 0; i < controllers.size(); i++) {
+            controllers.get(i).onBlockChanged(pos);
+        }
+    }
+
+    public static void onBlockEntityChanged(Level level, BlockPos pos) {
+        if(INDEX.isEmpty()) return;
+
+        Long2ObjectMap<List<BlockEntityController>> sections = INDEX.get(level);
+        if(sections == null) return;
+
+        List<BlockEntityController> controllers = sections.get(SectionPos.asLong(pos));
+        if(controllers == null) return;
+        for(int i = 0; i < controllers.size(); i++) {
+            controllers.get(i).onBlockEntityChanged(pos);
+        }
+    }
+
+    private static long[] sectionKeys(BoundingBox bounds) {
+        int minX = SectionPos.blockToSectionCoord(bounds.minX());
+        int minY = SectionPos.blockToSectionCoord(bounds.minY());
+        int minZ = SectionPos.blockToSectionCoord(bounds.minZ());
+        int maxX = SectionPos.blockToSectionCoord(bounds.maxX());
+        int maxY = SectionPos.blockToSectionCoord(bounds.maxY());
+        int maxZ = SectionPos.blockToSectionCoord(bounds.maxZ());
+
+        long[] keys = new long[(maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1)];
+        int i = 0;
+        for(int y = minY; y <= maxY; y++) {
+            for(int z = minZ; z <= maxZ; z++) {
+                for(int x = minX; x <= maxX; x++) {
+                    keys[i++] = SectionPos.asLong(x, y, z);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private record Registration(Level level, long[] sections) {
+    }
+}
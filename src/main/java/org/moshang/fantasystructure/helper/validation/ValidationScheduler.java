@@ -0,0 +1,106 @@
+package org.moshang.fantasystructure.helper.validation;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import org.moshang.fantasystructure.Config;
+import org.moshang.fantasystructure.blockentity.BlockEntityController;
+import org.moshang.fantasystructure.helper.StructurePattern;
+import org.slf4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs controller validations from all levels within a per-tick time budget.
+ * Controllers whose structure changed go first, periodic rescans fill the rest
+ * of the budget, and whatever does not fit is carried over to the next tick.
+ * Full checks of large patterns run on a worker pool against section snapshots
+ * and are handed back here on completion. Only used from the server thread,
+ * except {@link #postCompleted}.
+ */
+public class ValidationScheduler {
+    private static final ObjectLinkedOpenHashSet<BlockEntityController> CHANGED = new ObjectLinkedOpenHashSet<>();
+    private static final ObjectLinkedOpenHashSet<BlockEntityController> ROUTINE = new ObjectLinkedOpenHashSet<>();
+    private static final Queue<BlockEntityController> COMPLETED = new ConcurrentLinkedQueue<>();
+
+    private static ExecutorService VALIDATION_THREAD_POOL;
+
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private ValidationScheduler() {}
+
+    public static void init() {
+        if(VALIDATION_THREAD_POOL != null) return;
+        int threadCount = Math.min(Config.MAX_PROCESSOR.get(), Runtime.getRuntime().availableProcessors());
+        VALIDATION_THREAD_POOL = Executors.newFixedThreadPool(Math.max(threadCount, 1), runnable -> {
+            Thread thread = new Thread(runnable, "FantasyStructure Validation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOGGER.info("Initialized validation scheduler with {} threads free", threadCount);
+    }
+
+    /**
+     * @return whether a full check of {@code pattern} should run off the server thread
+     */
+    public static boolean shouldCheckAsync(StructurePattern pattern) {
+        int threshold = Config.ASYNC_VALIDATION_THRESHOLD.get();
+        return threshold > 0 && VALIDATION_THREAD_POOL != null && pattern.getCompiled().size() >= threshold;
+    }
+
+    public static Executor executor() {
+        return VALIDATION_THREAD_POOL;
+    }
+
+    /**
+     * Called from worker threads when an asynchronous check finished, the
+     * controller is validated again on the next server tick.
+     */
+    public static void postCompleted(BlockEntityController controller) {
+        COMPLETED.add(controller);
+    }
+
+    public static void requestChanged(BlockEntityController controller) {
+        ROUTINE.remove(controller);
+        CHANGED.add(controller);
+    }
+
+    public static void requestRescan(BlockEntityController controller) {
+        if(!CHANGED.contains(controller)) {
+            ROUTINE.add(controller);
+        }
+    }
+
+    public static void cancel(BlockEntityController controller) {
+        CHANGED.remove(controller);
+        ROUTINE.remove(controller);
+    }
+
+    public static int getPendingCount() {
+        return CHANGED.size() + ROUTINE.size();
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if(event.phase != TickEvent.Phase.END) return;
+
+        BlockEntityController completed;
+        while((completed = COMPLETED.poll()) != null) {
+            requestChanged(completed);
+        }
+        if(CHANGED.isEmpty() && ROUTINE.isEmpty()) return;
+
+        long deadline = System.nanoTime() + Config.VALIDATION_BUDGET.get() * 1000L;
+        do {
+            BlockEntityController controller = CHANGED.isEmpty() ? ROUTINE.removeFirst() : CHANGED.removeFirst();
+            if(!controller.isRemoved()) {
+                controller.validate();
+            }
+        } while((!CHANGED.isEmpty() || !ROUTINE.isEmpty()) && System.nanoTime() < deadline);
+    }
+}
@@ -0,0 +1,209 @@
+package org.moshang.fantasystructure.helper.validation;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.helper.CompiledPattern;
+import org.moshang.fantasystructure.helper.PatternOrientation;
+import org.moshang.fantasystructure.helper.SectionGrid;
+import org.moshang.fantasystructure.helper.StructurePattern;
+import org.slf4j.Logger;
+
+import java.util.BitSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Formed state of one controller, kept as the set of mismatching cells so that
+ * block changes only need their own positions re-checked.
+ */
+public class ValidationState {
+    private final LongOpenHashSet dirty = new LongOpenHashSet();
+    private final BitSet mismatches = new BitSet();
+    private int mismatchCount = -1;
+    private boolean rejected = false;
+    private PatternOrientation orientation = PatternOrientation.NONE;
+    @Nullable
+    private CompletableFuture<AsyncResult> pending;
+
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    public void markDirty(BlockPos pos) {
+        if(isKnown() || pending != null) {
+            dirty.add(pos.asLong());
+        }
+    }
+
+    public boolean hasDirty() {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * @return {@code false} until a full check ran, or after {@link #invalidate()}
+     */
+    public boolean isKnown() {
+        return mismatchCount >= 0 || rejected;
+    }
+
+    /**
+     * @return {@code true} if the last check only proved by the section palettes that
+     *         the structure is not formed, so the mismatching cells are not known
+     */
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    public void invalidate() {
+        if(pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        mismatchCount = -1;
+        rejected = false;
+        mismatches.clear();
+        dirty.clear();
+    }
+
+    /**
+     * Tests the current orientation against the chunk section palettes only. On a
+     * reject, the other orientations are still probed by their anchor cells.
+     * @return {@code true} if this settled the state without a full check
+     */
+    public boolean rejectByPalette(Level level, BlockPos pos, StructurePattern pattern) {
+        if(!pattern.quickReject(level, pos, orientation)) return false;
+
+        mismatches.clear();
+        dirty.clear();
+        mismatchCount = -1;
+        rejected = true;
+        tryOtherOrientations(level, pos, pattern);
+        return true;
+    }
+
+    /**
+     * Checks the last known orientation in full. If the structure is not formed
+     * there, the other orientations are probed by their anchor cells and the
+     * first one that fully matches is adopted.
+     */
+    public boolean fullCheck(Level level, BlockPos pos, StructurePattern pattern) {
+        mismatches.clear();
+        dirty.clear();
+        rejected = false;
+        mismatchCount = pattern.collectMismatches(level, pos, orientation, mismatches);
+        return isFormed() || tryOtherOrientations(level, pos, pattern);
+    }
+
+    /**
+     * Starts a full check of the current orientation against a snapshot of the
+     * chunk sections taken now, the match itself runs on {@code executor}.
+     * Block changes from here on are collected as dirty and applied after
+     * {@link #finishAsyncCheck}.
+     */
+    public CompletableFuture<?> startAsyncCheck(Level level, BlockPos pos, StructurePattern pattern, Executor executor) {
+        CompiledPattern program = pattern.getCompiled().orient(orientation);
+        SectionGrid snapshot = SectionGrid.snapshot(level, pattern.getBounds(pos, orientation));
+        BlockPos origin = pos.immutable();
+        dirty.clear();
+        pending = CompletableFuture.supplyAsync(() -> {
+            BitSet result = new BitSet();
+            IntArrayList deferred = new IntArrayList();
+            int count = program.collectMismatches(origin, snapshot, result, deferred);
+            return new AsyncResult(program, result, count, deferred);
+        }, executor);
+        return pending;
+    }
+
+    public boolean isChecking() {
+        return pending != null;
+    }
+
+    public boolean isCheckDone() {
+        return pending != null && pending.isDone();
+    }
+
+    /**
+     * Adopts the result of a finished {@link #startAsyncCheck}, verifying the cells
+     * that need block entity data against the level.
+     */
+    public boolean finishAsyncCheck(Level level, BlockPos pos, StructurePattern pattern) {
+        CompletableFuture<AsyncResult> future = pending;
+        pending = null;
+        AsyncResult result;
+        try {
+            result = future.join();
+        } catch (CancellationException | CompletionException e) {
+            LOGGER.warn("Structure check at {} failed", pos, e);
+            invalidate();
+            return false;
+        }
+
+        rejected = false;
+        mismatches.clear();
+        mismatches.or(result.mismatches());
+        mismatchCount = result.mismatchCount();
+        orientation = result.program().getOrientation();
+
+        CompiledPattern program = result.program();
+        BlockPos.MutableBlockPos worldPos = new BlockPos.MutableBlockPos();
+        IntIterator iterator = result.deferred().iterator();
+        while(iterator.hasNext()) {
+            int slot = iterator.nextInt();
+            worldPos.setWithOffset(pos, program.getDx(slot), program.getDy(slot), program.getDz(slot));
+            if(!program.getInfo(slot).matches(level, worldPos)) {
+                mismatches.set(program.getCell(slot));
+                mismatchCount++;
+            }
+        }
+        return isFormed() || tryOtherOrientations(level, pos, pattern);
+    }
+
+    public boolean applyDirty(Level level, BlockPos pos, StructurePattern pattern) {
+        BlockPos.MutableBlockPos worldPos = new BlockPos.MutableBlockPos();
+        LongIterator iterator = dirty.iterator();
+        while(iterator.hasNext()) {
+            worldPos.set(iterator.nextLong());
+            int cell = pattern.cellIndex(pos, orientation, worldPos);
+            if(cell < 0) continue;
+
+            boolean matches = pattern.matchesAt(level, pos, orientation, worldPos);
+            if(matches == mismatches.get(cell)) {
+                mismatches.set(cell, !matches);
+                mismatchCount += matches ? -1 : 1;
+            }
+        }
+        dirty.clear();
+        return isFormed() || tryOtherOrientations(level, pos, pattern);
+    }
+
+    private boolean tryOtherOrientations(Level level, BlockPos pos, StructurePattern pattern) {
+        PatternOrientation found = pattern.findOrientation(level, pos, orientation);
+        if(found == null) return false;
+
+        orientation = found;
+        rejected = false;
+        mismatches.clear();
+        mismatchCount = 0;
+        return true;
+    }
+
+    public boolean isFormed() {
+        return mismatchCount == 0;
+    }
+
+    public PatternOrientation getOrientation() {
+        return orientation;
+    }
+    public int getMismatchCount() {
+        return mismatchCount;
+    }
+
+    private record AsyncResult(CompiledPattern program, BitSet mismatches, int mismatchCount, IntArrayList deferred) {
+    }
+}
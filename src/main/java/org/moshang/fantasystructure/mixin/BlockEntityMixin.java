@@ -0,0 +1,78 @@
+package org.moshang.fantasystructure.mixin;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import org.jetbrains.annotations.Nullable;
+import org.moshang.fantasystructure.data.NbtPredicate;
+import org.moshang.fantasystructure.data.NbtRevision;
+import org.moshang.fantasystructure.helper.validation.ControllerIndex;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(BlockEntity.class)
+public abstract class BlockEntityMixin implements NbtRevision {
+    @Shadow
+    @Nullable
+    protected Level level;
+    @Shadow
+    @Final
+    protected BlockPos worldPosition;
+
+    @Unique
+    private int fantasystructure$revision;
+    @Unique
+    private NbtPredicate fantasystructure$cachedPredicate;
+    @Unique
+    private int fantasystructure$cachedRevision;
+    @Unique
+    private boolean fantasystructure$cachedResult;
+
+    @Inject(method = "setChanged()V", at = @At("HEAD"))
+    private void fantasystructure$onChanged(CallbackInfo ci) {
+        fantasystructure$revision++;
+        // NBT changes never pass through LevelChunk.setBlockState, only cells with an NBT requirement care
+        if(level != null && !level.isClientSide) {
+            ControllerIndex.onBlockEntityChanged(level, worldPosition);
+        }
+    }
+
+    @Inject(method = "load", at = @At("HEAD"))
+    private void fantasystructure$onLoad(CompoundTag tag, CallbackInfo ci) {
+        fantasystructure$revision++;
+    }
+
+    @Override
+    public int fantasystructure$getRevision() {
+        return fantasystructure$revision;
+    }
+
+    @Nullable
+    @Override
+    public NbtPredicate fantasystructure$getCachedPredicate() {
+        return fantasystructure$cachedPredicate;
+    }
+
+    @Override
+    public int fantasystructure$getCachedRevision() {
+        return fantasystructure$cachedRevision;
+    }
+
+    @Override
+    public boolean fantasystructure$getCachedResult() {
+        return fantasystructure$cachedResult;
+    }
+
+    @Override
+    public void fantasystructure$setCached(NbtPredicate predicate, int revision, boolean result) {
+        fantasystructure$cachedPredicate = predicate;
+        fantasystructure$cachedRevision = revision;
+        fantasystructure$cachedResult = result;
+    }
+}
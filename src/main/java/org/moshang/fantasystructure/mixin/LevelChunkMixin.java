@@ -0,0 +1,26 @@
+package org.moshang.fantasystructure.mixin;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.moshang.fantasystructure.helper.validation.ControllerIndex;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(LevelChunk.class)
+public abstract class LevelChunkMixin {
+
+    @Inject(method = "setBlockState", at = @At("RETURN"))
+    private void fantasystructure$onBlockChanged(BlockPos pos, BlockState state, boolean isMoving,
+                                                 CallbackInfoReturnable<BlockState> cir) {
+        if(cir.getReturnValue() == null) return;
+
+        Level level = ((LevelChunk) (Object) this).getLevel();
+        if(!level.isClientSide) {
+            ControllerIndex.onBlockChanged(level, pos);
+        }
+    }
+}
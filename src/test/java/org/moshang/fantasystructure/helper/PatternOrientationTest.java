@@ -0,0 +1,69 @@
+package org.moshang.fantasystructure.helper;
+
+import net.minecraft.world.level.block.Mirror;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatternOrientationTest {
+    private static final int[][] OFFSETS = { { 0, 0 }, { 1, 0 }, { 0, 1 }, { 3, -2 }, { -5, 7 }, { -4, -4 } };
+
+    @Test
+    void inverseUndoesTransform() {
+        for(PatternOrientation orientation : PatternOrientation.values()) {
+            for(int[] offset : OFFSETS) {
+                int x = orientation.transformX(offset[0], offset[1]);
+                int z = orientation.transformZ(offset[0], offset[1]);
+                assertEquals(offset[0], orientation.inverseX(x, z), orientation + " x of " + offset[0] + "," + offset[1]);
+                assertEquals(offset[1], orientation.inverseZ(x, z), orientation + " z of " + offset[0] + "," + offset[1]);
+            }
+        }
+    }
+
+    @Test
+    void rotationsFollowVanilla() {
+        // Rotation.CLOCKWISE_90 maps east (+x) to south (+z) and south to west
+        assertEquals(0, PatternOrientation.CLOCKWISE_90.transformX(1, 0));
+        assertEquals(1, PatternOrientation.CLOCKWISE_90.transformZ(1, 0));
+        assertEquals(-1, PatternOrientation.CLOCKWISE_90.transformX(0, 1));
+        assertEquals(0, PatternOrientation.CLOCKWISE_90.transformZ(0, 1));
+
+        assertEquals(-3, PatternOrientation.CLOCKWISE_180.transformX(3, -2));
+        assertEquals(2, PatternOrientation.CLOCKWISE_180.transformZ(3, -2));
+
+        assertEquals(-2, PatternOrientation.COUNTERCLOCKWISE_90.transformX(3, -2));
+        assertEquals(-3, PatternOrientation.COUNTERCLOCKWISE_90.transformZ(3, -2));
+    }
+
+    @Test
+    void mirrorIsAppliedBeforeRotation() {
+        assertEquals(-3, PatternOrientation.MIRRORED.transformX(3, -2));
+        assertEquals(-2, PatternOrientation.MIRRORED.transformZ(3, -2));
+
+        // mirrored to (-3, -2), then turned clockwise
+        assertEquals(2, PatternOrientation.MIRRORED_CLOCKWISE_90.transformX(3, -2));
+        assertEquals(-3, PatternOrientation.MIRRORED_CLOCKWISE_90.transformZ(3, -2));
+    }
+
+    @Test
+    void everyOrientationIsDistinct() {
+        PatternOrientation[] values = PatternOrientation.values();
+        for(int a = 0; a < values.length; a++) {
+            for(int b = a + 1; b < values.length; b++) {
+                boolean same = values[a].transformX(3, -2) == values[b].transformX(3, -2)
+                        && values[a].transformZ(3, -2) == values[b].transformZ(3, -2);
+                assertFalse(same, values[a] + " and " + values[b]);
+            }
+        }
+    }
+
+    @Test
+    void byIdFallsBackToNone() {
+        for(PatternOrientation orientation : PatternOrientation.values()) {
+            assertSame(orientation, PatternOrientation.byId(orientation.ordinal()));
+        }
+        assertSame(PatternOrientation.NONE, PatternOrientation.byId(-1));
+        assertSame(PatternOrientation.NONE, PatternOrientation.byId(PatternOrientation.values().length));
+        assertEquals(Mirror.FRONT_BACK, PatternOrientation.MIRRORED.getMirror());
+    }
+}
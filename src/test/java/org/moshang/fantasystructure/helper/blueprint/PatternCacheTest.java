@@ -0,0 +1,59 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatternCacheTest {
+
+    @Test
+    void tracksBytesAcrossUpdates() {
+        PatternCache<String> cache = new PatternCache<>();
+        assertTrue(cache.account("a", 100, true, 1000).isEmpty());
+        assertTrue(cache.account("b", 200, true, 1000).isEmpty());
+        assertEquals(300, cache.getBytes());
+
+        cache.account("a", 150, false, 1000);
+        assertEquals(350, cache.getBytes());
+
+        cache.remove("b");
+        cache.remove("missing");
+        assertEquals(150, cache.getBytes());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedFirst() {
+        PatternCache<String> cache = new PatternCache<>();
+        cache.account("a", 100, true, 300);
+        cache.account("b", 100, true, 300);
+        cache.account("c", 100, true, 300);
+        cache.touch("a");
+
+        assertEquals(List.of("b"), cache.account("d", 100, true, 300));
+        assertEquals(300, cache.getBytes());
+        assertEquals(List.of("c", "a"), cache.account("e", 200, true, 300));
+        assertEquals(300, cache.getBytes());
+    }
+
+    @Test
+    void neverEvictsTheAccountedEntry() {
+        PatternCache<String> cache = new PatternCache<>();
+        cache.account("a", 100, true, 300);
+        cache.account("b", 100, true, 300);
+
+        assertEquals(List.of("a"), cache.account("b", 500, false, 300));
+        assertEquals(500, cache.getBytes());
+    }
+
+    @Test
+    void growthOfAnEvictedEntryIsIgnored() {
+        PatternCache<String> cache = new PatternCache<>();
+        cache.account("a", 100, true, 150);
+        assertEquals(List.of("a"), cache.account("b", 100, true, 150));
+
+        assertTrue(cache.account("a", 120, false, 150).isEmpty());
+        assertEquals(100, cache.getBytes());
+    }
+}
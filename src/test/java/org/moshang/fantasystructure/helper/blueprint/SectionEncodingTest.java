@@ -0,0 +1,137 @@
+package org.moshang.fantasystructure.helper.blueprint;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SectionEncodingTest {
+    private static final int SIZE_X = 20, SIZE_Y = 18, SIZE_Z = 33;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void narrowIndicesRoundTrip() throws IOException {
+        short[][][] voxels = fill(new Random(1), 0xFF);
+        assertArrayEquals(flatten(voxels), flatten(roundTrip(voxels, false)));
+    }
+
+    @Test
+    void wideIndicesRoundTrip() throws IOException {
+        short[][][] voxels = fill(new Random(2), 0xFFFF);
+        assertArrayEquals(flatten(voxels), flatten(roundTrip(voxels, true)));
+    }
+
+    @Test
+    void literalsAndLongRuns() throws IOException {
+        short[][][] voxels = new short[SIZE_Y][SIZE_Z][SIZE_X];
+        for(int y = 0; y < SIZE_Y; y++) {
+            for(int z = 0; z < SIZE_Z; z++) {
+                for(int x = 0; x < SIZE_X; x++) {
+                    // whole rows of one type exceed the 127 cell run limit within a section
+                    voxels[y][z][x] = (short) (y < 4 ? 5 : (x + z) % 3 == 0 ? 127 : (x + z) % 3 == 1 ? 128 : 0);
+                }
+            }
+        }
+        assertArrayEquals(flatten(voxels), flatten(roundTrip(voxels, false)));
+        assertArrayEquals(flatten(voxels), flatten(roundTrip(voxels, true)));
+    }
+
+    @Test
+    void truncatedSectionStopsEarly() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] { 3, (byte) -4 }).order(ByteOrder.LITTLE_ENDIAN);
+        int[] decoded = new int[16 * 16 * 16];
+        Blueprint.decodeSection(data, 0, data.limit(), false, 16, 16, 16,
+                (x, y, z, typeIdx) -> decoded[(y * 16 + z) * 16 + x] = typeIdx);
+        assertEquals(3, decoded[0]);
+        assertEquals(0, decoded[1]);
+    }
+
+    private short[][][] roundTrip(short[][][] voxels, boolean wide) throws IOException {
+        int sectionsX = Blueprint.sectionCount(SIZE_X);
+        int sectionsY = Blueprint.sectionCount(SIZE_Y);
+        int sectionsZ = Blueprint.sectionCount(SIZE_Z);
+        int[] offsets = new int[sectionsX * sectionsY * sectionsZ + 1];
+
+        Path file = dir.resolve(wide ? "wide.bin" : "narrow.bin");
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlueprintOutput out = new BlueprintOutput(channel);
+            int section = 0;
+            for(int sy = 0; sy < sectionsY; sy++) {
+                for(int sz = 0; sz < sectionsZ; sz++) {
+                    for(int sx = 0; sx < sectionsX; sx++) {
+                        offsets[section++] = (int) out.position();
+                        BlueprintEditor.encodeSection(out, voxels, wide, SIZE_X, SIZE_Y, SIZE_Z,
+                                sx * Blueprint.SECTION_SIZE, sy * Blueprint.SECTION_SIZE, sz * Blueprint.SECTION_SIZE);
+                    }
+                }
+            }
+            offsets[section] = (int) out.position();
+            out.flush();
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        short[][][] decoded = new short[SIZE_Y][SIZE_Z][SIZE_X];
+        int section = 0;
+        for(int sy = 0; sy < sectionsY; sy++) {
+            for(int sz = 0; sz < sectionsZ; sz++) {
+                for(int sx = 0; sx < sectionsX; sx++, section++) {
+                    int originX = sx * Blueprint.SECTION_SIZE;
+                    int originY = sy * Blueprint.SECTION_SIZE;
+                    int originZ = sz * Blueprint.SECTION_SIZE;
+                    Blueprint.decodeSection(data, offsets[section], offsets[section + 1], wide,
+                            Math.min(Blueprint.SECTION_SIZE, SIZE_X - originX),
+                            Math.min(Blueprint.SECTION_SIZE, SIZE_Y - originY),
+                            Math.min(Blueprint.SECTION_SIZE, SIZE_Z - originZ),
+                            (x, y, z, typeIdx) -> decoded[originY + y][originZ + z][originX + x] = (short) typeIdx);
+                }
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Mostly runs of random length with scattered single cells, so both token kinds occur.
+     */
+    private static short[][][] fill(Random random, int maxType) {
+        short[][][] voxels = new short[SIZE_Y][SIZE_Z][SIZE_X];
+        short type = 0;
+        int run = 0;
+        for(int y = 0; y < SIZE_Y; y++) {
+            for(int z = 0; z < SIZE_Z; z++) {
+                for(int x = 0; x < SIZE_X; x++) {
+                    if(run-- <= 0) {
+                        type = (short) (random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(maxType));
+                        run = random.nextBoolean() ? 0 : random.nextInt(300);
+                    }
+                    voxels[y][z][x] = type;
+                }
+            }
+        }
+        return voxels;
+    }
+
+    private static int[] flatten(short[][][] voxels) {
+        int[] cells = new int[SIZE_X * SIZE_Y * SIZE_Z];
+        int i = 0;
+        for(short[][] layer : voxels) {
+            for(short[] row : layer) {
+                for(short voxel : row) {
+                    cells[i++] = voxel & 0xFFFF;
+                }
+            }
+        }
+        return cells;
+    }
+}
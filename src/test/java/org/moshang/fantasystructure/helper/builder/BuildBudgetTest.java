@@ -0,0 +1,42 @@
+package org.moshang.fantasystructure.helper.builder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildBudgetTest {
+    private static final double MS = 1_000_000D;
+
+    @Test
+    void fillsTheSpareTickTime() {
+        // 10 ms of other work leaves 30 ms below a 40 ms target, at 0.1 ms per block
+        assertEquals(300, BuildBudget.computeBudget(12 * MS, 2 * MS, 100_000, 40, 8, 2048));
+    }
+
+    @Test
+    void ownBuildTimeIsNotCountedAgainstTheBudget() {
+        assertEquals(BuildBudget.computeBudget(10 * MS, 0, 100_000, 40, 8, 2048),
+                BuildBudget.computeBudget(35 * MS, 25 * MS, 100_000, 40, 8, 2048));
+    }
+
+    @Test
+    void overloadedServerGetsTheFloor() {
+        assertEquals(8, BuildBudget.computeBudget(60 * MS, 1 * MS, 100_000, 40, 8, 2048));
+    }
+
+    @Test
+    void idleServerGetsTheCeiling() {
+        assertEquals(2048, BuildBudget.computeBudget(0, 0, 10, 40, 8, 2048));
+    }
+
+    @Test
+    void ceilingBelowFloorIsRaised() {
+        assertEquals(64, BuildBudget.computeBudget(0, 0, 10, 40, 64, 16));
+        assertEquals(64, BuildBudget.computeBudget(60 * MS, 0, 100_000, 40, 64, 16));
+    }
+
+    @Test
+    void zeroCostPerBlockDoesNotDivideByZero() {
+        assertEquals(2048, BuildBudget.computeBudget(10 * MS, 0, 0, 40, 8, 2048));
+    }
+}
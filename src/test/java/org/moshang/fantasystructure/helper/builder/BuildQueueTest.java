@@ -0,0 +1,137 @@
+package org.moshang.fantasystructure.helper.builder;
+
+import net.minecraft.core.BlockPos;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildQueueTest {
+
+    @Test
+    void budgetIsSharedByWeight() {
+        BuildQueue<FakeBuilder> queue = new BuildQueue<>();
+        FakeBuilder low = add(queue, 0, BuildPriority.LOW, 10_000);
+        FakeBuilder high = add(queue, 1, BuildPriority.HIGH, 10_000);
+
+        for(int tick = 0; tick < 100; tick++) {
+            assertEquals(10, queue.tick(10));
+        }
+        assertEquals(1000, low.placed + high.placed);
+        assertEquals(200, low.placed);
+        assertEquals(800, high.placed);
+    }
+
+    @Test
+    void sharesBelowOneBlockAddUp() {
+        BuildQueue<FakeBuilder> queue = new BuildQueue<>();
+        FakeBuilder low = add(queue, 0, BuildPriority.LOW, 10_000);
+        FakeBuilder high = add(queue, 1, BuildPriority.HIGH, 10_000);
+
+        // one block per tick, the low builder is owed a fifth of a block each tick
+        for(int tick = 0; tick < 50; tick++) {
+            queue.tick(1);
+        }
+        assertEquals(50, low.placed + high.placed);
+        assertEquals(10, low.placed);
+        assertEquals(40, high.placed);
+    }
+
+    @Test
+    void unusedBudgetGoesToTheOthers() {
+        BuildQueue<FakeBuilder> queue = new BuildQueue<>();
+        FakeBuilder small = add(queue, 0, BuildPriority.HIGH, 3);
+        FakeBuilder large = add(queue, 1, BuildPriority.LOW, 10_000);
+
+        assertEquals(20, queue.tick(20));
+        assertEquals(3, small.placed);
+        assertEquals(17, large.placed);
+    }
+
+    @Test
+    void finishedAndPausedBuilders() {
+        BuildQueue<FakeBuilder> queue = new BuildQueue<>();
+        FakeBuilder done = add(queue, 0, BuildPriority.NORMAL, 2);
+        FakeBuilder paused = add(queue, 1, BuildPriority.NORMAL, 100);
+        paused.paused = true;
+
+        assertEquals(2, queue.tick(10));
+        assertEquals(0, paused.placed);
+        assertTrue(done.released);
+        assertNull(queue.get(done.getCenter()));
+        assertSame(paused, queue.get(paused.getCenter()));
+        assertEquals(0, queue.getWeight());
+
+        paused.paused = false;
+        assertEquals(10, queue.tick(10));
+        assertEquals(10, paused.placed);
+    }
+
+    @Test
+    void unloadedBuildersAreReleased() {
+        BuildQueue<FakeBuilder> queue = new BuildQueue<>();
+        FakeBuilder builder = add(queue, 0, BuildPriority.NORMAL, 100);
+        builder.loaded = false;
+
+        assertEquals(0, queue.tick(10));
+        assertTrue(builder.released);
+        assertTrue(queue.isEmpty());
+    }
+
+    private static FakeBuilder add(BuildQueue<FakeBuilder> queue, int x, BuildPriority priority, int blocks) {
+        FakeBuilder builder = new FakeBuilder(new BlockPos(x, 0, 0), priority, blocks);
+        queue.add(builder);
+        return builder;
+    }
+
+    private static class FakeBuilder extends BuildQueue.Entry {
+        private final BlockPos center;
+        private final BuildPriority priority;
+        private int remaining;
+        int placed = 0;
+        boolean paused = false;
+        boolean loaded = true;
+        boolean released = false;
+
+        FakeBuilder(BlockPos center, BuildPriority priority, int blocks) {
+            this.center = center;
+            this.priority = priority;
+            this.remaining = blocks;
+        }
+
+        @Override
+        BlockPos getCenter() {
+            return center;
+        }
+        @Override
+        boolean isBuilding() {
+            return remaining > 0;
+        }
+        @Override
+        boolean isPaused() {
+            return paused;
+        }
+        @Override
+        boolean isLoaded() {
+            return loaded;
+        }
+        @Override
+        BuildPriority getPriority() {
+            return priority;
+        }
+        @Override
+        boolean hasTasks() {
+            return remaining > 0;
+        }
+        @Override
+        int tick(int budget) {
+            int done = Math.min(budget, remaining);
+            remaining -= done;
+            placed += done;
+            return done;
+        }
+        @Override
+        void release() {
+            released = true;
+        }
+    }
+}